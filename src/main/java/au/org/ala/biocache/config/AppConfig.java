@@ -44,6 +44,11 @@ public class AppConfig {
     @Value("${service.autocomplete.local.enabled:true}")
     protected Boolean autocompleteLocalEnabled;
 
+    //Build an in memory autocomplete index from the local names index at startup. Off by default, it only matches
+    //the start of words and falls back to the names index when it finds fewer than the requested results.
+    @Value("${service.autocomplete.index.enabled:false}")
+    protected Boolean autocompleteIndexEnabled;
+
     // Configuration for facets
     @Value("${facet.config:/data/biocache/config/facets.json}")
     protected String facetConfig;
@@ -86,7 +91,11 @@ public class AppConfig {
         logger.info("Initialising species lookup services.");
         try {
             if (autocompleteLocalEnabled) {
-                return getSpeciesLookupIndexService();
+                SpeciesLookupIndexService service = (SpeciesLookupIndexService) getSpeciesLookupIndexService();
+                if (autocompleteIndexEnabled) {
+                    service.buildAutocompleteIndex();
+                }
+                return service;
             }
         } catch (Exception e) {
             logger.error("Failed to initialise local species lookup service for use with the species autocomplete ws. Attempting to use BIE instead.");
@@ -16,24 +16,45 @@ package au.org.ala.biocache.dao;
 
 import au.org.ala.biocache.dto.DownloadDetailsDTO;
 import au.org.ala.biocache.dto.DownloadRequestParams;
+import au.org.ala.biocache.util.QueueTimeSamples;
 
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A queue that stores the Downloads as JSON files in the supplied directory
+ * A queue that stores the Downloads as JSON records in an append-only journal in the supplied directory.
+ * <p>
+ * Waiting downloads are indexed by download type and record size class so that dispatch only looks at the
+ * head of each eligible index. A download is claimed by removing it from its index, so concurrent control
+ * threads never hand out the same download and do not need to share a lock to do so.
+ * <p>
+ * Downloads are ordered with start-time fair queueing per email. The cost of a download is estimated from
+ * the number of records and fields, so a user with one large download, or many downloads, does not hold up
+ * the downloads of other users.
+ * <p>
+ * The journal is rewritten with only the queued downloads once enough removals have been appended.
+ * Downloads stored as individual JSON files by earlier versions are imported into the journal on refresh.
  *
  * @author Natasha Carter (natasha.carter@csiro.au)
  */
@@ -48,19 +69,101 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
 
     private static final String FILE_PREFIX = "offline";
 
+    private static final String JOURNAL_FILE = "offline-queue.journal";
+
+    private static final String OP_ADD = "add";
+
+    private static final String OP_REMOVE = "remove";
+
     @Value("${download.dir:/data/biocache-download}")
     protected String biocacheDownloadDir;
 
+    /**
+     * Upper bounds (inclusive) of the record size classes used to index waiting downloads. Aligning these with
+     * the maxRecords of the configured download pools means a pool only ever looks at the head of each index.
+     */
+    @Value("${download.queue.size.classes:50000,1000000,100000000}")
+    protected String sizeClasses = "50000,1000000,100000000";
+
+    /**
+     * The number of removals appended to the journal before it is compacted.
+     */
+    @Value("${download.queue.compact.threshold:100}")
+    protected int compactThreshold = 100;
+
+    /**
+     * Optional CSV list of email:weight. A user with weight 2 is given twice the share of a user with the default weight of 1.
+     */
+    @Value("${download.queue.user.weights:}")
+    protected String userWeights = "";
+
+    /**
+     * The number of recent queue times kept for each size class.
+     */
+    @Value("${download.queue.stats.samples:1000}")
+    protected int queueTimeSampleSize = 1000;
+
     private final ObjectMapper jsonMapper = new ObjectMapper();
 
-    private final Queue<DownloadDetailsDTO> offlineDownloadList = new LinkedBlockingQueue<>();
+    /**
+     * All queued downloads (waiting and started) in the order in which they were added.
+     */
+    private final ConcurrentNavigableMap<Long, QueueEntry> offlineDownloadList = new ConcurrentSkipListMap<>();
+
+    /**
+     * Queued downloads by download instance, for removal.
+     */
+    private final ConcurrentMap<DownloadDetailsDTO, QueueEntry> entriesByDownload = new ConcurrentHashMap<>();
+
+    /**
+     * Queued downloads by email and download parameters, for {@link #isInQueue(DownloadDetailsDTO)}.
+     */
+    private final ConcurrentMap<String, QueueEntry> entriesByRequest = new ConcurrentHashMap<>();
+
+    /**
+     * Downloads that have not been started, indexed by [download type][size class] and ordered by sequence number.
+     * The index for a null download type is the last element of the first dimension.
+     */
+    private volatile ConcurrentSkipListSet<QueueEntry>[][] waiting;
+
+    private volatile long[] sizeClassBounds;
+
+    private volatile QueueTimeSamples[] queueTimes;
+
+    private Map<String, Double> weights = new HashMap<>();
+
+    /**
+     * The finish tag of the last download added for each email. Must be accessed while holding the listLock.
+     */
+    private final Map<String, Double> finishTags = new HashMap<>();
+
+    /**
+     * Fair queueing virtual time, the start tag of the most recently started download, as double bits.
+     */
+    private final AtomicLong virtualTime = new AtomicLong(Double.doubleToLongBits(0));
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Incremented whenever a download becomes available, so that waiting threads do not miss a notification.
+     */
+    private final AtomicLong availableVersion = new AtomicLong();
+
+    private final Object availableLock = new Object();
 
+    /**
+     * Guards writes to the journal and the updates to the indexes that go with them.
+     */
     private final Object listLock = new Object();
 
+    private Writer journalWriter;
+
+    private int removalsSinceCompaction = 0;
+
     /**
      * Start closed and wait until the {@link #init()} method completes to accept downloads.<br>
      * Otherwise there is the chance that they will be clobbered or fail to be added correctly by the "forceMkdir" code
-     * or the refresh that clears the queue and refreshes it from the JSON files on disk.<br>
+     * or the refresh that clears the queue and refreshes it from the journal on disk.<br>
      * Can also be closed by a call to the {@link #shutdown()} method.
      */
     private final AtomicBoolean closed = new AtomicBoolean(true);
@@ -101,6 +204,14 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
                         synchronized (listLock) {
                             jsonMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
 
+                            sizeClassBounds = parseSizeClasses(sizeClasses);
+                            waiting = createIndexes(sizeClassBounds.length + 1);
+                            queueTimes = new QueueTimeSamples[sizeClassBounds.length + 1];
+                            for (int i = 0; i < queueTimes.length; i++) {
+                                queueTimes[i] = new QueueTimeSamples(queueTimeSampleSize);
+                            }
+                            weights = parseWeights(userWeights);
+
                             File file = new File(cacheDirectory);
                             try {
                                 FileUtils.forceMkdir(file);
@@ -120,14 +231,126 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
             }.start();
         }
     }
+
+    private static long[] parseSizeClasses(String value) {
+        String[] parts = StringUtils.split(value == null ? "" : value, ", ");
+        long[] bounds = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            bounds[i] = Long.parseLong(parts[i]);
+        }
+        Arrays.sort(bounds);
+        return bounds;
+    }
+
+    private static Map<String, Double> parseWeights(String value) {
+        Map<String, Double> map = new HashMap<>();
+        for (String item : StringUtils.split(value == null ? "" : value, ", ")) {
+            int i = item.lastIndexOf(':');
+            if (i > 0) {
+                try {
+                    double weight = Double.parseDouble(item.substring(i + 1));
+                    if (weight > 0) {
+                        map.put(item.substring(0, i).toLowerCase(), weight);
+                    }
+                } catch (NumberFormatException e) {
+                    logger.error("Invalid download queue user weight: " + item);
+                }
+            }
+        }
+        return map;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentSkipListSet<QueueEntry>[][] createIndexes(int numberOfSizeClasses) {
+        int numberOfTypes = DownloadDetailsDTO.DownloadType.values().length + 1;
+        ConcurrentSkipListSet<QueueEntry>[][] indexes = new ConcurrentSkipListSet[numberOfTypes][numberOfSizeClasses];
+        for (int i = 0; i < numberOfTypes; i++) {
+            for (int j = 0; j < numberOfSizeClasses; j++) {
+                indexes[i][j] = new ConcurrentSkipListSet<>();
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Estimate the cost of a download from the number of records and the number of requested fields.
+     *
+     * @param dd
+     * @return the estimated cost, at least 1
+     */
+    static double estimateCost(DownloadDetailsDTO dd) {
+        int fields = 1;
+        DownloadRequestParams params = dd.getRequestParams();
+        if (params != null) {
+            fields = StringUtils.split(StringUtils.defaultString(params.getFields()), ',').length
+                    + StringUtils.split(StringUtils.defaultString(params.getExtra()), ',').length;
+        }
+        return (double) Math.max(1L, dd.getTotalRecords()) * Math.max(1, fields);
+    }
+
+    private double getVirtualTime() {
+        return Double.longBitsToDouble(virtualTime.get());
+    }
+
+    private void advanceVirtualTime(double startTag) {
+        while (true) {
+            long current = virtualTime.get();
+            if (Double.longBitsToDouble(current) >= startTag
+                    || virtualTime.compareAndSet(current, Double.doubleToLongBits(startTag))) {
+                return;
+            }
+        }
+    }
+
     /**
-     * Returns a file object that represents the a persisted download on the queue
+     * Assigns the fair queueing start tag of a download. Must be called while holding the listLock, in the order
+     * downloads were added.
+     */
+    private void assignStartTag(QueueEntry entry) {
+        String user = StringUtils.lowerCase(entry.download.getEmail());
+        Double weight = weights.get(user);
+        Double previousFinish = finishTags.get(user);
+        double start = getVirtualTime();
+        if (previousFinish != null && previousFinish > start) {
+            start = previousFinish;
+        }
+        entry.startTag = start;
+        finishTags.put(user, start + estimateCost(entry.download) / (weight == null ? 1.0 : weight));
+    }
+
+    /**
+     * @param totalRecords
+     * @return the index of the first size class that can hold the number of records
+     */
+    private int getSizeClass(long totalRecords) {
+        long[] bounds = sizeClassBounds;
+        int i = Arrays.binarySearch(bounds, totalRecords);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    private ConcurrentSkipListSet<QueueEntry> getWaitingIndex(DownloadDetailsDTO dd) {
+        DownloadDetailsDTO.DownloadType type = dd.getDownloadType();
+        int typeIndex = type == null ? waiting.length - 1 : type.ordinal();
+        return waiting[typeIndex][getSizeClass(dd.getTotalRecords())];
+    }
+
+    private static String getRequestKey(DownloadDetailsDTO dd) {
+        return StringUtils.lowerCase(dd.getEmail()) + "\n" + StringUtils.lowerCase(dd.getDownloadParams());
+    }
+
+    /**
+     * Returns a file object that represents the a persisted download on the queue, as stored by earlier versions
      * @param key
      * @return
      */
     private File getFile(long key) {
         return new File(cacheDirectory +File.separator+ FILE_PREFIX + key + ".json");
     }
+
+    private File getJournalFile() {
+        return new File(cacheDirectory + File.separator + JOURNAL_FILE);
+    }
+
     /**
      * @see au.org.ala.biocache.dao.PersistentQueueDAO#addDownloadToQueue(DownloadDetailsDTO)
      */
@@ -137,6 +360,7 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
         if (!closed.get()) {
             synchronized (listLock) {
                 boolean allGood = false;
+                QueueEntry entry = new QueueEntry(sequence.incrementAndGet(), download);
                 try {
                     // Avoid double addition by checking if it is already in the queue while we have the listLock
                     DownloadDetailsDTO inQueue = isInQueue(download);
@@ -146,15 +370,15 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
                         }
                         return;
                     }
-                    File f = getFile(download.getStartTime());
-                    jsonMapper.writeValue(f, download);
+                    appendToJournal(new JournalRecord(OP_ADD, entry.id, download));
                     allGood = true;
                 } catch (Exception e) {
                     logger.error("Unable to store download details to persistent storage: ", e);
                 }
                 finally {
                     if (allGood) {
-                        offlineDownloadList.add(download);
+                        index(entry);
+                        signalAvailable();
                     } else {
                         logger.error("Download could not be added to the queue: " + download.toString());
                     }
@@ -164,50 +388,119 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
             logger.error("Download could not be added to the queue because the queue has been closed: " + download.toString());
         }
     }
+
+    /**
+     * Adds the entry to all of the indexes. Must be called while holding the listLock.
+     */
+    private void index(QueueEntry entry) {
+        offlineDownloadList.put(entry.id, entry);
+        entriesByDownload.put(entry.download, entry);
+        entriesByRequest.put(getRequestKey(entry.download), entry);
+        if (entry.download.getFileLocation() == null) {
+            assignStartTag(entry);
+            entry.waitingIndex = getWaitingIndex(entry.download);
+            entry.waitingIndex.add(entry);
+        }
+    }
+
+    private void signalAvailable() {
+        availableVersion.incrementAndGet();
+        synchronized (availableLock) {
+            availableLock.notifyAll();
+        }
+    }
+
     /**
      * @see au.org.ala.biocache.dao.PersistentQueueDAO#getNextDownload()
      */
     @Override
     public DownloadDetailsDTO getNextDownload() {
+        return getNextDownload(null, null);
+    }
+
+    /**
+     * @see au.org.ala.biocache.dao.PersistentQueueDAO#getNextDownload(Integer maxRecords, au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType type)
+     */
+    @Override
+    public DownloadDetailsDTO getNextDownload(Integer maxRecords, DownloadDetailsDTO.DownloadType type) {
         afterInitialisation();
-        synchronized (listLock) {
-            for (DownloadDetailsDTO dd : offlineDownloadList) {
-                if (dd.getFileLocation() == null) {
-                    //give a place for the downlaod
-                    dd.setFileLocation(biocacheDownloadDir + File.separator + UUID.nameUUIDFromBytes(dd.getEmail().getBytes()) + File.separator + dd.getStartTime() + File.separator + dd.getRequestParams().getFile() + ".zip");
-                    return dd;
+        while (true) {
+            // find the first waiting download in fair queueing order over the eligible indexes
+            QueueEntry next = null;
+            ConcurrentSkipListSet<QueueEntry> nextIndex = null;
+            ConcurrentSkipListSet<QueueEntry>[][] indexes = waiting;
+            for (int t = 0; t < indexes.length; t++) {
+                if (type != null && t != type.ordinal()) {
+                    continue;
                 }
+                for (int s = 0; s < indexes[t].length; s++) {
+                    QueueEntry head = firstEligible(indexes[t][s], maxRecords);
+                    if (head != null && (next == null || head.compareTo(next) < 0)) {
+                        next = head;
+                        nextIndex = indexes[t][s];
+                    }
+                    if (maxRecords != null && (s >= sizeClassBounds.length || sizeClassBounds[s] >= maxRecords)) {
+                        // larger size classes can not hold any eligible downloads
+                        break;
+                    }
+                }
+            }
+
+            if (next == null) {
+                //if we reached here all of the downloads have started or there are no downloads on the list
+                return null;
+            }
+
+            // claim the download, another thread may have claimed it first
+            if (nextIndex.remove(next)) {
+                DownloadDetailsDTO dd = next.download;
+                advanceVirtualTime(next.startTag);
+                if (dd.getStartDate() != null) {
+                    queueTimes[getSizeClass(dd.getTotalRecords())].add(System.currentTimeMillis() - dd.getStartDate().getTime());
+                }
+                //give a place for the download
+                UUID emailUUID = UUID.nameUUIDFromBytes(dd.getEmail().getBytes());
+                long startTime = dd.getStartTime();
+                DownloadRequestParams requestParams = dd.getRequestParams();
+                String file = requestParams.getFile();
+                dd.setFileLocation(biocacheDownloadDir + File.separator + emailUUID + File.separator + startTime + File.separator + file + ".zip");
+                return dd;
             }
         }
+    }
 
-        //if we reached here all of the downloads have started or there are no downloads on the list
+    private QueueEntry firstEligible(ConcurrentSkipListSet<QueueEntry> index, Integer maxRecords) {
+        for (QueueEntry entry : index) {
+            if (maxRecords == null || entry.download.getTotalRecords() <= maxRecords) {
+                return entry;
+            }
+        }
         return null;
     }
 
     /**
-     * @see au.org.ala.biocache.dao.PersistentQueueDAO#getNextDownload(Integer maxRecords, au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType type)
+     * @see au.org.ala.biocache.dao.PersistentQueueDAO#waitForNextDownload(Integer, au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType, long, TimeUnit)
      */
     @Override
-    public DownloadDetailsDTO getNextDownload(Integer maxRecords, DownloadDetailsDTO.DownloadType type) {
-        afterInitialisation();
-        synchronized (listLock) {
-            for (DownloadDetailsDTO dd : offlineDownloadList) {
-                if (dd.getFileLocation() == null &&
-                        (maxRecords == null || dd.getTotalRecords() <= maxRecords) &&
-                        (type == null || dd.getDownloadType().equals(type))) {
-                    //give a place for the downlaod
-                    UUID emailUUID = UUID.nameUUIDFromBytes(dd.getEmail().getBytes());
-                    long startTime = dd.getStartTime();
-                    DownloadRequestParams requestParams = dd.getRequestParams();
-                    String file = requestParams.getFile();
-                    dd.setFileLocation(biocacheDownloadDir + File.separator + emailUUID + File.separator + startTime + File.separator + file + ".zip");
-                    return dd;
+    public DownloadDetailsDTO waitForNextDownload(Integer maxRecords, DownloadDetailsDTO.DownloadType type, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            long version = availableVersion.get();
+            DownloadDetailsDTO dd = getNextDownload(maxRecords, type);
+            if (dd != null) {
+                return dd;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            synchronized (availableLock) {
+                // only wait if nothing was added since the queue was checked
+                if (availableVersion.get() == version) {
+                    TimeUnit.NANOSECONDS.timedWait(availableLock, remaining);
                 }
             }
         }
-
-        //if we reached here all of the downloads have started or there are no downloads on the list
-        return null;
     }
 
     /**
@@ -216,9 +509,7 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
     @Override
     public int getTotalDownloads() {
         afterInitialisation();
-        synchronized (listLock) {
-            return offlineDownloadList.size();
-        }
+        return offlineDownloadList.size();
     }
 
     /**
@@ -229,19 +520,27 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
         afterInitialisation();
         synchronized (listLock) {
             logger.debug("Removing the download from the queue");
-            // delete it from the directory
+            QueueEntry entry = entriesByDownload.remove(download);
+            if (entry == null) {
+                return;
+            }
             try {
-                File f = getFile(download.getStartTime());
-                if (logger.isInfoEnabled()) {
-                    logger.info("Deleting " + f.getAbsolutePath() + " " + f.exists());
+                appendToJournal(new JournalRecord(OP_REMOVE, entry.id, null));
+                removalsSinceCompaction++;
+            } catch (IOException e) {
+                logger.error("Unable to remove download details from persistent storage: " + download.toString(), e);
+            } finally {
+                offlineDownloadList.remove(entry.id);
+                entriesByRequest.remove(getRequestKey(download), entry);
+                if (entry.waitingIndex != null) {
+                    entry.waitingIndex.remove(entry);
                 }
-                FileUtils.deleteQuietly(f);
             }
-            finally {
-                offlineDownloadList.remove(download);
+
+            if (removalsSinceCompaction >= compactThreshold) {
+                compact();
             }
         }
-
     }
 
     /**
@@ -250,10 +549,11 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
     @Override
     public List<DownloadDetailsDTO> getAllDownloads() {
         afterInitialisation();
-        synchronized (listLock) {
-            List<DownloadDetailsDTO> result = new ArrayList<>(offlineDownloadList);
-            return Collections.unmodifiableList(result);
+        List<DownloadDetailsDTO> result = new ArrayList<>(offlineDownloadList.size());
+        for (QueueEntry entry : offlineDownloadList.values()) {
+            result.add(entry.download);
         }
+        return Collections.unmodifiableList(result);
     }
 
     /**
@@ -263,38 +563,90 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
     public void refreshFromPersistent() {
         if (!closed.get()) {
             synchronized (listLock) {
+                closeJournal();
                 offlineDownloadList.clear();
-                File file = new File(cacheDirectory);
-                //load the list with the available downloads ordering by the least recently modified
-                File[] files = file.listFiles();
-                if (files != null) {
-                    Arrays.sort(files, new Comparator<File>() {
-                        @Override
-                        public int compare(File o1, File o2) {
-                            return (int) (((File) o1).lastModified() - ((File) o2).lastModified());
-                        }
-                    });
+                entriesByDownload.clear();
+                entriesByRequest.clear();
+                waiting = createIndexes(sizeClassBounds.length + 1);
+                finishTags.clear();
+                virtualTime.set(Double.doubleToLongBits(0));
 
-                    //value = jsonMapper.readValue(file, ParamsCacheObject.class);
-                    for (File f : files) {
-                        if (f.isFile()) {
+                //replay the journal, keeping the downloads that were added and not removed
+                Map<Long, DownloadDetailsDTO> downloads = new LinkedHashMap<>();
+                File journal = getJournalFile();
+                if (journal.exists()) {
+                    try (BufferedReader reader = Files.newBufferedReader(journal.toPath(), StandardCharsets.UTF_8)) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            if (line.isEmpty()) {
+                                continue;
+                            }
                             try {
-                                DownloadDetailsDTO dd = jsonMapper.readValue(f, DownloadDetailsDTO.class);
-                                // Ensure that previously partially downloaded files get their downloads
-                                // reattempted by making them available for download again and removing
-                                // any partial files that already exist for it
-                                String previousFileLocation = dd.getFileLocation();
-                                dd.setFileLocation(null);
-                                if (previousFileLocation != null) {
-                                    FileUtils.deleteQuietly(new File(previousFileLocation));
+                                JournalRecord record = jsonMapper.readValue(line, JournalRecord.class);
+                                if (OP_ADD.equals(record.op) && record.download != null) {
+                                    downloads.put(record.id, record.download);
+                                } else if (OP_REMOVE.equals(record.op)) {
+                                    downloads.remove(record.id);
                                 }
-                                offlineDownloadList.add(dd);
                             } catch (Exception e) {
-                                logger.error("Unable to load cached download " + f.getAbsolutePath(), e);
+                                // a partially written last record, if the service stopped while it was being appended
+                                logger.error("Unable to read cached download journal record: " + line, e);
                             }
                         }
+                    } catch (IOException e) {
+                        logger.error("Unable to load cached download journal " + journal.getAbsolutePath(), e);
+                    }
+                }
+                long maxId = 0;
+                for (Long id : downloads.keySet()) {
+                    maxId = Math.max(maxId, id);
+                }
+                sequence.set(maxId);
+
+                //import downloads stored as individual files, ordering by the least recently modified
+                List<File> legacyFiles = new ArrayList<>();
+                File[] files = new File(cacheDirectory).listFiles();
+                if (files != null) {
+                    for (File f : files) {
+                        if (f.isFile() && f.getName().startsWith(FILE_PREFIX) && f.getName().endsWith(".json")) {
+                            legacyFiles.add(f);
+                        }
+                    }
+                    Collections.sort(legacyFiles, new Comparator<File>() {
+                        @Override
+                        public int compare(File o1, File o2) {
+                            return Long.compare(o1.lastModified(), o2.lastModified());
+                        }
+                    });
+                    for (File f : legacyFiles) {
+                        try {
+                            downloads.put(sequence.incrementAndGet(), jsonMapper.readValue(f, DownloadDetailsDTO.class));
+                        } catch (Exception e) {
+                            logger.error("Unable to load cached download " + f.getAbsolutePath(), e);
+                        }
+                    }
+                }
+
+                for (Map.Entry<Long, DownloadDetailsDTO> e : downloads.entrySet()) {
+                    DownloadDetailsDTO dd = e.getValue();
+                    // Ensure that previously partially downloaded files get their downloads
+                    // reattempted by making them available for download again and removing
+                    // any partial files that already exist for it
+                    String previousFileLocation = dd.getFileLocation();
+                    dd.setFileLocation(null);
+                    if (previousFileLocation != null) {
+                        FileUtils.deleteQuietly(new File(previousFileLocation));
+                    }
+                    index(new QueueEntry(e.getKey(), dd));
+                }
+
+                // the journal only needs the downloads still in the queue
+                if (compact()) {
+                    for (File f : legacyFiles) {
+                        FileUtils.deleteQuietly(f);
                     }
                 }
+                signalAvailable();
             }
         } else {
             // Add a stack trace to the error message to enable debugging of when refresh is called while we are closed
@@ -302,27 +654,135 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
         }
     }
 
+    /**
+     * Appends a record to the journal. Must be called while holding the listLock.
+     */
+    private void appendToJournal(JournalRecord record) throws IOException {
+        if (journalWriter == null) {
+            journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(getJournalFile(), true), StandardCharsets.UTF_8));
+        }
+        journalWriter.write(jsonMapper.writeValueAsString(record));
+        journalWriter.write('\n');
+        journalWriter.flush();
+    }
+
+    private void closeJournal() {
+        if (journalWriter != null) {
+            try {
+                journalWriter.close();
+            } catch (IOException e) {
+                logger.error("Unable to close cached download journal", e);
+            }
+            journalWriter = null;
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the downloads that are currently queued. Must be called while holding the listLock.
+     *
+     * @return true when the journal was rewritten
+     */
+    private boolean compact() {
+        closeJournal();
+        // forget users that have no outstanding share of the queue
+        double now = getVirtualTime();
+        Iterator<Double> finishes = finishTags.values().iterator();
+        while (finishes.hasNext()) {
+            if (finishes.next() <= now) {
+                finishes.remove();
+            }
+        }
+
+        File journal = getJournalFile();
+        File tmp = new File(journal.getPath() + ".tmp");
+        try {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+                for (QueueEntry entry : offlineDownloadList.values()) {
+                    writer.write(jsonMapper.writeValueAsString(new JournalRecord(OP_ADD, entry.id, entry.download)));
+                    writer.write('\n');
+                }
+            }
+            Files.move(tmp.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            removalsSinceCompaction = 0;
+            return true;
+        } catch (IOException e) {
+            logger.error("Unable to compact cached download journal " + journal.getAbsolutePath(), e);
+            FileUtils.deleteQuietly(tmp);
+            return false;
+        }
+    }
+
     /**
      * @see au.org.ala.biocache.dao.PersistentQueueDAO#isInQueue(au.org.ala.biocache.dto.DownloadDetailsDTO dd)
      */
     @Override
     public DownloadDetailsDTO isInQueue(DownloadDetailsDTO dd) {
         afterInitialisation();
-        synchronized (listLock) {
-            for (DownloadDetailsDTO d : offlineDownloadList) {
-                if (d.getEmail().equalsIgnoreCase(d.getEmail()) &&
-                        d.getDownloadParams().equalsIgnoreCase(dd.getDownloadParams())) {
-                    return d;
-                }
-            }
-        }
+        QueueEntry entry = entriesByRequest.get(getRequestKey(dd));
 
-        //if we reached here it was not found
-        return null;
+        //null if it was not found
+        return entry == null ? null : entry.download;
+    }
+
+    /**
+     * @see au.org.ala.biocache.dao.PersistentQueueDAO#getQueueTimes()
+     */
+    @Override
+    public Map<String, Map<String, Long>> getQueueTimes() {
+        afterInitialisation();
+        Map<String, Map<String, Long>> result = new LinkedHashMap<>();
+        long[] bounds = sizeClassBounds;
+        for (int i = 0; i < queueTimes.length; i++) {
+            String label = i < bounds.length ? "<=" + bounds[i] : ">" + (bounds.length > 0 ? bounds[bounds.length - 1] : 0);
+            result.put(label, queueTimes[i].getPercentiles());
+        }
+        return result;
     }
 
     @Override
     public void shutdown() {
         closed.set(true);
     }
+
+    /**
+     * A queued download and its position in the queue. Waiting downloads are ordered by start tag, then by the
+     * order in which they were added.
+     */
+    private static class QueueEntry implements Comparable<QueueEntry> {
+        final long id;
+        final DownloadDetailsDTO download;
+        /** fair queueing start tag, assigned before the entry is added to a waiting index */
+        double startTag;
+        /** the index this entry was added to while it was waiting to start */
+        ConcurrentSkipListSet<QueueEntry> waitingIndex;
+
+        QueueEntry(long id, DownloadDetailsDTO download) {
+            this.id = id;
+            this.download = download;
+        }
+
+        @Override
+        public int compareTo(QueueEntry o) {
+            int c = Double.compare(startTag, o.startTag);
+            return c != 0 ? c : Long.compare(id, o.id);
+        }
+    }
+
+    /**
+     * A line in the journal. Adds carry the download, removals only the id of the added download.
+     */
+    public static class JournalRecord {
+        public String op;
+        public long id;
+        public DownloadDetailsDTO download;
+
+        public JournalRecord() {
+        }
+
+        JournalRecord(String op, long id, DownloadDetailsDTO download) {
+            this.op = op;
+            this.id = id;
+            this.download = download;
+        }
+    }
 }
@@ -1,6 +1,8 @@
 package au.org.ala.biocache.dao;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import au.org.ala.biocache.dto.DownloadDetailsDTO;
 
@@ -38,6 +40,20 @@ public interface PersistentQueueDAO {
      */
     DownloadDetailsDTO getNextDownload(Integer maxRecords, DownloadDetailsDTO.DownloadType type);
 
+    /**
+     * As for {@link #getNextDownload(Integer, DownloadDetailsDTO.DownloadType)}, but blocks until a matching
+     * download is added to the queue or the timeout elapses.
+     *
+     * @param maxRecords An {@link Integer} specifying the maximum records in a download
+     *                   to have it selected, or null to ignore the number of records in a download
+     * @param type A {@link DownloadDetailsDTO.DownloadType} to specify a particular type of download, or null to ignore
+     * @param timeout The maximum time to wait
+     * @param unit The unit of the timeout
+     * @return A {@link DownloadDetailsDTO} or null if no downloads matched the criteria before the timeout.
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    DownloadDetailsDTO waitForNextDownload(Integer maxRecords, DownloadDetailsDTO.DownloadType type, long timeout, TimeUnit unit) throws InterruptedException;
+
     /**
      * Gets the total number of downloads that are on the queue
      * @return The number of downloads that are currently in the queue
@@ -69,6 +85,13 @@ public interface PersistentQueueDAO {
      */
     DownloadDetailsDTO isInQueue(DownloadDetailsDTO dd);
 
+    /**
+     * Gets the time downloads waited in the queue before they were started, by record size class.
+     *
+     * @return For each size class, the number of downloads started and percentiles (ms) of their recent queue times
+     */
+    Map<String, Map<String, Long>> getQueueTimes();
+
     /**
      * Initialises the queue before use, to allow it to setup in-memory caches and start paused downloads.
      */
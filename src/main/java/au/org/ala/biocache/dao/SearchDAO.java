@@ -26,6 +26,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -126,6 +127,18 @@ public interface SearchDAO {
      */
     void writeCoordinatesToStream(SearchRequestParams searchParams,OutputStream out) throws Exception;
 
+    /**
+     * Write the occurrences of a query to the supplied stream as CSV, one page of downloadBatchSize records at
+     * a time. Writes up to pageSize records from start. The header is the fl fields, or all stored fields of
+     * the index when fl is empty.
+     *
+     * @param searchParams
+     * @param out UTF-8 CSV is written to this stream, it is flushed but not closed
+     * @return number of records written
+     * @throws Exception
+     */
+    int writeOccurrencesCsvToStream(SpatialSearchRequestParams searchParams, OutputStream out) throws Exception;
+
     /**
      * Write facet content to supplied output stream
      *
@@ -184,6 +197,29 @@ public interface SearchDAO {
      */
     FacetField getFacetPointsShort(SpatialSearchRequestParams searchParams, String pointType) throws Exception;
 
+    /**
+     * Get the points of each range of a single valued numeric or date field with one request.
+     *
+     * @param searchParams
+     * @param facetField
+     * @param cutpoints pairs of inclusive lower and upper bounds, as in the colour mode of WMS layers
+     * @param pointType
+     * @return the points facet keyed by the fq of each range, and of records without a value, as in
+     * {@link #getLegend}. null when the field is multivalued or the cutpoints are not numbers or dates
+     * @throws Exception
+     */
+    Map<String, FacetField> getRangeFacetPoints(SpatialSearchRequestParams searchParams, String facetField, String[] cutpoints, String pointType) throws Exception;
+
+    /**
+     * Get the extent of the occurrences with valid coordinates with one stats request. The result is cached until
+     * the index changes.
+     *
+     * @param searchParams
+     * @return min longitude, min latitude, max longitude, max latitude, or all 0 when there are no occurrences
+     * @throws Exception
+     */
+    double[] getBBox(SpatialSearchRequestParams searchParams) throws Exception;
+
     /**
      * Retrieve a list of occurrence uid's for a given search
      *
@@ -323,7 +359,7 @@ public interface SearchDAO {
     List<FacetResultDTO> getFacetCounts(SpatialSearchRequestParams searchParams) throws Exception;
 
     /**
-     * Get the SOLR index version. Trigger a background refresh on a timeout.
+     * Get the SOLR index version. The version and index fields are refreshed in the background.
      *
      * Forcing an updated value will perform a new SOLR query for each request to be run in the foreground.
      *
@@ -332,6 +368,20 @@ public interface SearchDAO {
      */
     Long getIndexVersion(Boolean force);
 
+    /**
+     * Register a listener that is notified when the SOLR index version changes.
+     *
+     * @param listener
+     */
+    void addIndexVersionListener(IndexVersionListener listener);
+
+    /**
+     * Get the size of the SOLR response cache, and the hits and misses for each cached request type.
+     *
+     * @return
+     */
+    Map<String, Object> getResponseCacheStats();
+
     /**
      * Perform grouped facet query.
      *
@@ -380,6 +430,40 @@ public interface SearchDAO {
      */
     List<FieldStatsItem> searchStat(SpatialSearchRequestParams searchParams, String field, String facet) throws Exception;
 
+    /**
+     * Return the record counts for each of the supplied facet queries, in a single request.
+     * <p>
+     * Used to count a set of range buckets without issuing a query per bucket.
+     *
+     * @param searchParams
+     * @param facetQueries queries to count, e.g. field:[a TO b]
+     * @return map of facet query to count, in the order supplied
+     * @throws Exception
+     */
+    Map<String, Long> getFacetQueryCounts(SpatialSearchRequestParams searchParams, List<String> facetQueries) throws Exception;
+
+    /**
+     * Return a 2D histogram of the records of a query over two numeric fields.
+     * <p>
+     * Bins are (lower, upper], except the first bin of each axis which includes the lower bound.
+     * Each x bin is counted by a separate request with a range facet over y, run on the given executor.
+     *
+     * @param searchParams
+     * @param x      numeric field for the first axis
+     * @param xStart lower bound of the first x bin
+     * @param xGap   width of each x bin
+     * @param xBins  number of x bins
+     * @param y      numeric field for the second axis
+     * @param yStart lower bound of the first y bin
+     * @param yGap   width of each y bin
+     * @param yBins  number of y bins
+     * @param executor runs the request of each x bin
+     * @return counts indexed by [x bin][y bin]
+     * @throws Exception
+     */
+    long[][] getDensityGrid(SpatialSearchRequestParams searchParams, String x, Number xStart, Number xGap, int xBins,
+                            String y, Number yStart, Number yGap, int yBins, ExecutorService executor) throws Exception;
+
     /**
      * Return legend items for a query and facet.
      * <p>
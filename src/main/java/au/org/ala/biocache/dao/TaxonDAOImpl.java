@@ -21,9 +21,12 @@ import org.apache.log4j.Logger;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.PivotField;
 import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.util.NamedList;
 import org.springframework.stereotype.Component;
 
+import java.io.BufferedWriter;
 import java.io.Writer;
 import java.net.URLEncoder;
 import java.util.ArrayList;
@@ -33,6 +36,7 @@ import java.util.List;
 public class TaxonDAOImpl implements TaxonDAO {
 
     private static final Logger logger = Logger.getLogger(TaxonDAOImpl.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
     protected SolrServer server;
 
     /**
@@ -51,109 +55,81 @@ public class TaxonDAOImpl implements TaxonDAO {
         }
     }
 
+    /**
+     * Writes the species group > order > family > genus > species hierarchy.
+     *
+     * One facet request finds the species groups, then one pivot request per species group retrieves the
+     * rest of its tree.
+     */
     public void extractBySpeciesGroups(String metadataUrl, String q, String[] fq, Writer writer) throws Exception{
+        Writer out = new BufferedWriter(writer, BUFFER_SIZE);
 
         List<FacetField.Count> speciesGroups = extractFacet(q,fq, "species_group");
         for(FacetField.Count spg: speciesGroups){
             if (spg.getName() != null) {
-                List<FacetField.Count> orders = extractFacet(q, (String[]) ArrayUtils.add(fq, "species_group:" + spg.getName()), "order");
-                for (FacetField.Count o : orders) {
-                    if (o.getName() != null) {
-                        outputNestedMappableLayerStart("order", o.getName(), writer);
-                        List<FacetField.Count> families = extractFacet(q, (String[]) ArrayUtils.add(fq, "order:" + o.getName()), "family");
-                        for (FacetField.Count f : families) {
-                            if (f.getName() != null) {
-                                outputNestedMappableLayerStart("family", f.getName(), writer);
-                                List<FacetField.Count> genera = extractFacet(q, (String[]) ArrayUtils.addAll(fq, new String[]{"family:" + f.getName(), "species_group:" + spg.getName()}), "genus");
-                                for (FacetField.Count g : genera) {
-                                    if (g.getName() != null) {
-                                        outputNestedMappableLayerStart("genus", g.getName(), writer);
-                                        List<FacetField.Count> species = extractFacet(q, (String[]) ArrayUtils.addAll(fq, new String[]{"genus:" + g.getName(), "species_group:" + spg.getName(), "family:" + f.getName()}), "species");
-                                        for (FacetField.Count s : species) {
-                                            if (s.getName() != null) {
-                                                outputLayer(metadataUrl, "species", s.getName(), writer);
-                                            }
-                                        }
-                                        outputNestedLayerEnd(writer);
-                                    }
-                                }
-                                outputNestedLayerEnd(writer);
-                            }
-                        }
-                        outputNestedLayerEnd(writer);
-                    }
-                }
-                outputNestedLayerEnd(writer);
+                outputNestedLayerStart(spg.getName(), out);
+                List<PivotField> orders = extractPivot(q, (String[]) ArrayUtils.add(fq, "species_group:" + spg.getName()), "order,family,genus,species");
+                outputPivot(metadataUrl, orders, out);
+                outputNestedLayerEnd(out);
+                out.flush();
             }
         }
+        out.flush();
     }
 
+    /**
+     * Writes the kingdom > phylum > class > order > family > genus > species hierarchy.
+     *
+     * One facet request finds the kingdoms, then one pivot request per kingdom retrieves the rest of its tree.
+     */
     @Override
     public void extractHierarchy(String metadataUrl, String q, String[] fq, Writer writer) throws Exception {
+        Writer out = new BufferedWriter(writer, BUFFER_SIZE);
 
         List<FacetField.Count> kingdoms = extractFacet(q,fq,"kingdom");
         for(FacetField.Count k: kingdoms){
             if (k.getName() != null) {
-                outputNestedLayerStart(k.getName(), writer);
-                List<FacetField.Count> phyla = extractFacet(q, (String[]) ArrayUtils.add(fq, "kingdom:" + k.getName()), "phylum");
-                for (FacetField.Count p : phyla) {
-                    if (p.getName() != null) {
-                        outputNestedMappableLayerStart("phylum", p.getName(), writer);
-                        List<FacetField.Count> classes = extractFacet(q, (String[]) ArrayUtils.add(fq, "phylum:" + p.getName()), "class");
-                        for (FacetField.Count c : classes) {
-                            if (c.getName() != null) {
-                                outputNestedMappableLayerStart("class", c.getName(), writer);
-                                List<FacetField.Count> orders = extractFacet(q, (String[]) ArrayUtils.add(fq, "class:" + c.getName()), "order");
-                                for (FacetField.Count o : orders) {
-                                    if (o.getName() != null) {
-                                        outputNestedMappableLayerStart("order", o.getName(), writer);
-                                        List<FacetField.Count> families = extractFacet(q, (String[]) ArrayUtils.addAll(fq, new String[]{"order:" + o.getName(), "kingdom:" + k.getName()}), "family");
-                                        for (FacetField.Count f : families) {
-                                            if (f.getName() != null) {
-                                                outputNestedMappableLayerStart("family", f.getName(), writer);
-                                                List<FacetField.Count> genera = extractFacet(q, (String[]) ArrayUtils.addAll(fq, new String[]{"family:" + f.getName(), "kingdom:" + k.getName()}), "genus");
-                                                for (FacetField.Count g : genera) {
-                                                    if (g.getName() != null) {
-                                                        outputNestedMappableLayerStart("genus", g.getName(), writer);
-                                                        List<FacetField.Count> species = extractFacet(q, (String[]) ArrayUtils.addAll(fq, new String[]{"genus:" + g.getName(), "kingdom:" + k.getName(), "family:" + f.getName()}), "species");
-                                                        for (FacetField.Count s : species) {
-                                                            if (s.getName() != null) {
-                                                                outputLayer(metadataUrl, "species", s.getName(), writer);
-                                                            }
-                                                        }
-                                                        outputNestedLayerEnd(writer);
-                                                    }
-                                                }
-                                                outputNestedLayerEnd(writer);
-                                            }
-                                        }
-                                        outputNestedLayerEnd(writer);
-                                    }
-                                }
-                                outputNestedLayerEnd(writer);
-                            }
-                        }
-                        outputNestedLayerEnd(writer);
-                    }
+                outputNestedLayerStart(k.getName(), out);
+                List<PivotField> phyla = extractPivot(q, (String[]) ArrayUtils.add(fq, "kingdom:" + k.getName()), "phylum,class,order,family,genus,species");
+                outputPivot(metadataUrl, phyla, out);
+                outputNestedLayerEnd(out);
+                out.flush();
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes a pivot tree as nested layers. The last pivot level is written as mappable leaf layers.
+     */
+    private void outputPivot(String metadataUrl, List<PivotField> pivots, Writer out) throws Exception {
+        if (pivots == null) {
+            return;
+        }
+        for (PivotField pf : pivots) {
+            if (pf.getValue() != null) {
+                String name = pf.getValue().toString();
+                if ("species".equals(pf.getField())) {
+                    outputLayer(metadataUrl, "species", name, out);
+                } else {
+                    outputNestedMappableLayerStart(pf.getField(), name, out);
+                    outputPivot(metadataUrl, pf.getPivot(), out);
+                    outputNestedLayerEnd(out);
                 }
-                outputNestedLayerEnd(writer);
             }
         }
     }
 
     void outputNestedMappableLayerStart(String rank, String taxon, Writer out) throws Exception {
         out.write("<Layer queryable=\"1\"><Name>" + rank + ":" + taxon + "</Name><Title>" + taxon + "</Title>");
-        out.flush();
     }
 
     void outputNestedLayerStart(String layerName, Writer out) throws Exception {
         out.write("<Layer><Name>"+layerName + "</Name><Title>"+layerName + "</Title>\n\t");
-        out.flush();
     }
 
     void outputNestedLayerEnd(Writer out) throws Exception {
         out.write("</Layer>");
-        out.flush();
     }
 
     void outputLayer(String metadataUrlRoot, String rank, String taxon, Writer out) throws Exception {
@@ -167,7 +143,28 @@ public class TaxonDAOImpl implements TaxonDAO {
                 " xlink:href=\""+metadataUrlRoot+"?q="+rank+":"+ URLEncoder.encode(taxon,"UTF-8") +"\"/>\n" +
                 "</MetadataURL>"+
                 "</Layer>");
-        out.flush();
+    }
+
+    private List<PivotField> extractPivot(String queryString, String[] filterQueries, String pivot) throws Exception {
+        SolrQuery query = new SolrQuery(queryString);
+        query.setFacet(true);
+        query.add("facet.pivot", pivot);
+        query.add("facet.pivot.mincount", "1");
+        query.setRows(0);
+        query.setFacetLimit(-1);
+        query.setStart(0);
+        query.setFacetMinCount(1);
+        query.setFacetSort("index");
+        if(filterQueries != null){
+            for(String fq: filterQueries) query.addFilterQuery(fq);
+        }
+        QueryResponse response = server.query(query);
+        NamedList<List<PivotField>> pivots = response.getFacetPivot();
+        List<PivotField> result = pivots != null ? pivots.get(pivot) : null;
+        if(result == null){
+            result = new ArrayList<PivotField>();
+        }
+        return result;
     }
 
     private List<FacetField.Count> extractFacet(String queryString, String[] filterQueries, String facetName) throws Exception {
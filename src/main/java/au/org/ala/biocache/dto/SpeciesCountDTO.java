@@ -27,6 +27,10 @@ public class SpeciesCountDTO {
      * counts for each lft
      */
     private long[] counts;
+    /**
+     * prefix sums of counts, cumulative[i] is the sum of counts[0..i-1]
+     */
+    private long[] cumulative;
     /**
      * index version for this object
      */
@@ -43,6 +47,7 @@ public class SpeciesCountDTO {
     public SpeciesCountDTO(long[] lft, long[] counts, long indexVersion) {
         this.lft = lft;
         this.counts = counts;
+        this.cumulative = prefixSums(counts);
         this.indexVersion = indexVersion;
     }
 
@@ -66,6 +71,55 @@ public class SpeciesCountDTO {
 
     public void setCounts(long[] counts) {
         this.counts = counts;
+        this.cumulative = prefixSums(counts);
+    }
+
+    public long[] getCumulative() {
+        return cumulative;
+    }
+
+    /**
+     * Sum of the counts for lft values in the inclusive range left to right.
+     *
+     * @param left
+     * @param right
+     * @return
+     */
+    public long getCount(long left, long right) {
+        if (lft == null || cumulative == null || right < left) {
+            return 0;
+        }
+        int start = search(lft, left);
+        int end = search(lft, right);
+        if (end < lft.length && lft[end] == right) {
+            end++;
+        }
+        return end > start ? cumulative[end] - cumulative[start] : 0;
+    }
+
+    /**
+     * @param values
+     * @return the prefix sums of values, with a leading 0
+     */
+    public static long[] prefixSums(long[] values) {
+        if (values == null) {
+            return null;
+        }
+        long[] sums = new long[values.length + 1];
+        for (int i = 0; i < values.length; i++) {
+            sums[i + 1] = sums[i] + values[i];
+        }
+        return sums;
+    }
+
+    /**
+     * @param lft sorted values
+     * @param value
+     * @return position of value in lft, or the position of the first value greater than it
+     */
+    public static int search(long[] lft, long value) {
+        int pos = java.util.Arrays.binarySearch(lft, value);
+        return pos < 0 ? -1 * pos - 1 : pos;
     }
 
     public long getIndexVersion() {
@@ -24,13 +24,15 @@ public class SpeciesImagesDTO {
     private long [] lft;
     /** total count and first image info */
     private SpeciesImageDTO [] speciesImage;
+    /** prefix sums of the image counts, cumulative[i] is the sum of counts for speciesImage[0..i-1] */
+    private long [] cumulative;
 
     /**
      * Constructor
      */
     public SpeciesImagesDTO(long[] lft, SpeciesImageDTO [] speciesImage) {
         this.lft = lft;
-        this.speciesImage = speciesImage;
+        setSpeciesImage(speciesImage);
     }
 
     /**
@@ -52,5 +54,43 @@ public class SpeciesImagesDTO {
 
     public void setSpeciesImage(SpeciesImageDTO[] speciesImage) {
         this.speciesImage = speciesImage;
+        if (speciesImage == null) {
+            cumulative = null;
+        } else {
+            long[] counts = new long[speciesImage.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = speciesImage[i] == null ? 0 : speciesImage[i].getCount();
+            }
+            cumulative = SpeciesCountDTO.prefixSums(counts);
+        }
+    }
+
+    public long[] getCumulative() {
+        return cumulative;
+    }
+
+    /**
+     * First image and the total image count for lft values where left <= lft < right.
+     *
+     * @param left
+     * @param right
+     * @return null when there are no images in the range
+     */
+    public SpeciesImageDTO get(long left, long right) {
+        if (lft == null || cumulative == null) {
+            return null;
+        }
+        int start = SpeciesCountDTO.search(lft, left);
+        if (start >= lft.length || lft[start] >= right || speciesImage[start] == null) {
+            return null;
+        }
+        int end = SpeciesCountDTO.search(lft, right);
+
+        SpeciesImageDTO ret = new SpeciesImageDTO(speciesImage[start].getDataResourceUid(), speciesImage[start].getImage());
+        long sum = cumulative[end] - cumulative[start];
+        if (sum > 0) {
+            ret.setCount(sum);
+        }
+        return ret;
     }
 }
@@ -21,12 +21,17 @@ import au.org.ala.biocache.dao.SearchDAO;
 import au.org.ala.biocache.dto.DownloadDetailsDTO;
 import au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType;
 import au.org.ala.biocache.dto.DownloadRequestParams;
+import au.org.ala.biocache.dto.FacetResultDTO;
+import au.org.ala.biocache.dto.FieldResultDTO;
 import au.org.ala.biocache.dto.IndexFieldDTO;
 import au.org.ala.biocache.stream.OptionalZipOutputStream;
 import au.org.ala.biocache.util.AlaFileUtils;
+import au.org.ala.biocache.util.CitationCache;
+import au.org.ala.biocache.util.DownloadCheckpoint;
 import au.org.ala.biocache.util.thread.DownloadControlThread;
 import au.org.ala.biocache.util.thread.DownloadCreator;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.ala.client.appender.RestLevel;
 import org.ala.client.model.LogEventVO;
 import org.apache.commons.httpclient.HttpException;
@@ -37,6 +42,7 @@ import org.apache.log4j.Logger;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
+import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.event.ContextClosedEvent;
@@ -52,10 +58,15 @@ import java.io.*;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -92,6 +103,8 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
     @Inject
     protected RestOperations restTemplate;
     @Inject
+    protected CitationCache citationCache;
+    @Inject
     protected com.fasterxml.jackson.databind.ObjectMapper objectMapper;
     @Inject
     protected EmailService emailService;
@@ -111,6 +124,17 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
     @Value("${headings.enabled:true}")
     protected Boolean headingsEnabled = Boolean.TRUE;
 
+    /** Maximum number of threads preparing the citation and headings entries of downloads */
+    @Value("${download.auxiliary.maxthreads:4}")
+    protected Integer auxiliaryMaxThreads = 4;
+
+    /** Max number of citation and headings tasks waiting for a thread, further tasks run on the download thread */
+    @Value("${download.auxiliary.queue.size:100}")
+    protected Integer auxiliaryQueueSize = 100;
+
+    /** Prepares the citation and headings entries of downloads. Lazily created. */
+    private volatile ThreadPoolExecutor auxiliaryExecutor;
+
     /** Stores the current list of downloads that are being performed. */
     protected final Queue<DownloadDetailsDTO> currentDownloads = new LinkedBlockingQueue<DownloadDetailsDTO>();
 
@@ -120,9 +144,6 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
     @Value("${registry.url:http://collections.ala.org.au/ws}")
     protected String registryUrl = "http://collections.ala.org.au/ws";
 
-    @Value("${citations.url:http://collections.ala.org.au/ws/citations}")
-    protected String citationServiceUrl = "http://collections.ala.org.au/ws/citations";
-
     @Value("${download.url:http://biocache.ala.org.au/biocache-download}")
     protected String biocacheDownloadUrl = "http://biocache.ala.org.au/biocache-download";
 
@@ -296,6 +317,11 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                         Thread.currentThread().interrupt();
                     }
                 }
+
+                ExecutorService nextAuxiliaryExecutor = auxiliaryExecutor;
+                if(nextAuxiliaryExecutor != null) {
+                    nextAuxiliaryExecutor.shutdownNow();
+                }
             }
         }
     }
@@ -351,7 +377,7 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
      * @param fromIndex
      * @throws Exception
      */
-    public void writeQueryToStream(DownloadDetailsDTO dd, DownloadRequestParams requestParams, String ip,
+    public void writeQueryToStream(final DownloadDetailsDTO dd, final DownloadRequestParams requestParams, String ip,
                                    OutputStream out, boolean includeSensitive, boolean fromIndex, boolean limit,
                                    boolean zip) throws Exception {
         afterInitialisation();
@@ -369,6 +395,10 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
             } else {
                 requestParams.setFacets(new String[] { "data_resource_uid" });
             }
+            // offline downloads look up the citations of the query while the records are written
+            if (!limit && citationsEnabled) {
+                prefetchCitations(requestParams);
+            }
             ConcurrentMap<String, AtomicInteger> uidStats = null;
             try {
                 if (fromIndex) {
@@ -379,10 +409,43 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
             } catch (Exception e) {
                 logger.error(e.getMessage(), e);
             } finally {
-                unregisterDownload(dd);
+                if (closed.get()) {
+                    // interrupted by a shutdown, leave it on the persistent queue to continue after a restart
+                    currentDownloads.remove(dd);
+                } else {
+                    unregisterDownload(dd);
+                }
             }
             sp.closeEntry();
 
+            // prepare the citation and headings entries concurrently, then add them in the existing order
+            final ConcurrentMap<String, AtomicInteger> finalUidStats = uidStats;
+            final List<String> citationsForReadme = new ArrayList<String>();
+            Future<byte[]> citations = null;
+            if (uidStats != null && !uidStats.isEmpty() && citationsEnabled) {
+                citations = prepareEntry(new EntryWriter() {
+                    @Override
+                    public void write(OutputStream out) throws Exception {
+                        getCitations(finalUidStats, out, requestParams.getSep(), requestParams.getEsc(), citationsForReadme);
+                    }
+                });
+            } else {
+                if(logger.isDebugEnabled()) {
+                    logger.debug("Not adding citation. Enabled: " + citationsEnabled + " uids: " + uidStats);
+                }
+            }
+            Future<byte[]> headings = null;
+            if (headingsEnabled) {
+                headings = prepareEntry(new EntryWriter() {
+                    @Override
+                    public void write(OutputStream out) throws Exception {
+                        getHeadings(finalUidStats, out, requestParams, dd.getMiscFields());
+                    }
+                });
+            } else {
+                logger.debug("Not adding header. Enabled: " + headingsEnabled + " uids: " + uidStats);
+            }
+
             // add the readme for the Shape file header mappings if necessary
             if (dd.getHeaderMap() != null) {
                 sp.putNextEntry("Shape-README.html");
@@ -397,20 +460,11 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
             }
 
             // Add the data citation to the download
-            List<String> citationsForReadme = new ArrayList<String>();
-            if (uidStats != null && !uidStats.isEmpty() && citationsEnabled) {
+            if (citations != null) {
                 // add the citations for the supplied uids
                 sp.putNextEntry("citation.csv");
-                try {
-                    getCitations(uidStats, sp, requestParams.getSep(), requestParams.getEsc(), citationsForReadme);
-                } catch (Exception e) {
-                    logger.error(e.getMessage(), e);
-                }
+                writeEntry(citations, sp);
                 sp.closeEntry();
-            } else {
-                if(logger.isDebugEnabled()) {
-                    logger.debug("Not adding citation. Enabled: " + citationsEnabled + " uids: " + uidStats);
-                }
             }
 
             // online downloads will not have a file location or request params set
@@ -426,15 +480,6 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
             sp.putNextEntry("README.html");
             String dataProviders = "<ul><li>" + StringUtils.join(citationsForReadme, "</li><li>") + "</li></ul>";
 
-            // online downloads will not have a file location or request params set
-            // in dd.
-            if (dd.getRequestParams() == null) {
-                dd.setRequestParams(requestParams);
-            }
-            if (dd.getFileLocation() == null) {
-                dd.setFileLocation(generateSearchUrl(dd.getRequestParams()));
-            }
-
             String fileLocation = dd.getFileLocation().replace(biocacheDownloadDir, biocacheDownloadUrl);
             String readmeContent = biocacheDownloadReadme.replace("[url]", fileLocation)
                     .replace("[date]", dd.getStartDateString())
@@ -449,17 +494,10 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
             sp.closeEntry();
 
             // Add headings file, listing information about the headings
-            if (headingsEnabled) {
-                // add the citations for the supplied uids
+            if (headings != null) {
                 sp.putNextEntry("headings.csv");
-                try {
-                    getHeadings(uidStats, sp, requestParams, dd.getMiscFields());
-                } catch (Exception e) {
-                    logger.error(e.getMessage(), e);
-                }
+                writeEntry(headings, sp);
                 sp.closeEntry();
-            } else {
-                logger.debug("Not adding header. Enabled: " + headingsEnabled + " uids: " + uidStats);
             }
 
             sp.flush();
@@ -529,11 +567,14 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
             }
 
             try (CSVWriter writer = new CSVWriter(new OutputStreamWriter(new CloseShieldOutputStream(out), Charset.forName("UTF-8")), sep, '"', esc);) {
-                // Object[] citations =
-                // restfulClient.restPost(citationServiceUrl, "text/json",
-                // uidStats.keySet());
-                List<LinkedHashMap<String, Object>> entities = restTemplate.postForObject(citationServiceUrl,
-                        uidStats.keySet(), List.class);
+                // the uids of records in the download, excluding the header entries
+                List<String> uids = new ArrayList<String>(uidStats.size());
+                for (Map.Entry<String, AtomicInteger> e : uidStats.entrySet()) {
+                    if (e.getValue().get() >= 0) {
+                        uids.add(e.getKey());
+                    }
+                }
+                List<Map<String, Object>> entities = citationCache.getCitations(uids);
                 if (entities.size() > 0) {
                     // i18n of the citation header
                     writer.writeNext(new String[] { messageSource.getMessage("citation.uid", null, "UID", null),
@@ -673,6 +714,96 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
         }
     }
 
+    /**
+     * Writes the content of a download entry.
+     */
+    private interface EntryWriter {
+        void write(OutputStream out) throws Exception;
+    }
+
+    /**
+     * Prepare the content of a download entry in the background.
+     *
+     * @param entryWriter
+     * @return the content, which is incomplete when the entry writer failed
+     */
+    private Future<byte[]> prepareEntry(final EntryWriter entryWriter) {
+        return getAuxiliaryExecutor().submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try {
+                    entryWriter.write(bytes);
+                } catch (Exception e) {
+                    logger.error(e.getMessage(), e);
+                }
+                return bytes.toByteArray();
+            }
+        });
+    }
+
+    private void writeEntry(Future<byte[]> entry, OutputStream out) throws IOException {
+        try {
+            out.write(entry.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            entry.cancel(true);
+        } catch (java.util.concurrent.ExecutionException e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Load the citations of the collectory uids in the query into the citation cache, in the background.
+     *
+     * @param requestParams
+     */
+    private void prefetchCitations(DownloadRequestParams requestParams) {
+        final DownloadRequestParams params = new DownloadRequestParams();
+        BeanUtils.copyProperties(requestParams, params);
+        if (requestParams.getFq() != null) {
+            params.setFq(requestParams.getFq().clone());
+        }
+        getAuxiliaryExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    params.setPageSize(0);
+                    params.setFlimit(-1);
+                    params.setFacet(true);
+                    params.setFacets(new String[]{"institution_uid", "collection_uid", "data_provider_uid", "data_resource_uid"});
+                    List<String> uids = new ArrayList<String>();
+                    for (FacetResultDTO facet : searchDAO.findByFulltextSpatialQuery(params, null).getFacetResults()) {
+                        for (FieldResultDTO value : facet.getFieldResult()) {
+                            uids.add(value.getFieldValue());
+                        }
+                    }
+                    citationCache.getCitations(uids);
+                } catch (Exception e) {
+                    logger.warn("Unable to prefetch the citations of a download: " + e.getMessage(), e);
+                }
+            }
+        });
+    }
+
+    private ExecutorService getAuxiliaryExecutor() {
+        ThreadPoolExecutor nextExecutor = auxiliaryExecutor;
+        if (nextExecutor == null) {
+            synchronized (this) {
+                nextExecutor = auxiliaryExecutor;
+                if (nextExecutor == null) {
+                    nextExecutor = new ThreadPoolExecutor(auxiliaryMaxThreads, auxiliaryMaxThreads, 60L, TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<Runnable>(Math.max(1, auxiliaryQueueSize)),
+                            new ThreadFactoryBuilder().setNameFormat("biocache-download-auxiliary-%d").setDaemon(true).build(),
+                            new ThreadPoolExecutor.CallerRunsPolicy());
+                    nextExecutor.allowCoreThreadTimeOut(true);
+                    auxiliaryExecutor = nextExecutor;
+                }
+            }
+        }
+        return nextExecutor;
+    }
+
     private String getOrElse(Map<String, Object> map, String key, String value) {
         if (map.containsKey(key)) {
             return map.get(key).toString();
@@ -835,6 +966,8 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                     // we are now ready to start the download
                     // we need to create an output stream to the file system
 
+                    // set when the download is interrupted by a shutdown, to continue it from its checkpoint after a restart
+                    boolean resume = false;
                     try (FileOutputStream fos = FileUtils
                             .openOutputStream(new File(currentDownload.getFileLocation()));) {
                         // cannot include misc columns if shp
@@ -845,6 +978,13 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                         writeQueryToStream(currentDownload, currentDownload.getRequestParams(),
                                 currentDownload.getIpAddress(), new CloseShieldOutputStream(fos), currentDownload.getIncludeSensitive(),
                                 currentDownload.getDownloadType() == DownloadType.RECORDS_INDEX, false, true);
+                        if (closed.get()) {
+                            resume = true;
+                            if (logger.isInfoEnabled()) {
+                                logger.info("Offline download interrupted by shutdown, it will continue after a restart: " + currentDownload);
+                            }
+                            return currentDownload;
+                        }
                         // now that the download is complete email a link to the
                         // recipient.
                         String subject = messageSource.getMessage("offlineEmailSubject", null,
@@ -876,6 +1016,12 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                         }
 
                     } catch (Exception e) {
+                        if (closed.get()) {
+                            resume = true;
+                            logger.error("Offline download interrupted by shutdown, it will continue after a restart. download path: "
+                                    + currentDownload.getFileLocation(), e);
+                            return currentDownload;
+                        }
                         logger.error("Error in offline download, sending email. download path: "
                                 + currentDownload.getFileLocation(), e);
 
@@ -902,7 +1048,10 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                     } finally {
                         // incase of server up/down, only remove from queue
                         // after emails are sent
-                        persistentQueueDAO.removeDownloadFromQueue(currentDownload);
+                        if (!resume) {
+                            DownloadCheckpoint.delete(currentDownload);
+                            persistentQueueDAO.removeDownloadFromQueue(currentDownload);
+                        }
                     }
                     return currentDownload;
                 }
@@ -14,21 +14,30 @@
  ***************************************************************************/
 package au.org.ala.biocache.service;
 
+import au.org.ala.biocache.dao.IndexVersionListener;
 import au.org.ala.biocache.dao.SearchDAO;
 import au.org.ala.biocache.dto.*;
+import au.org.ala.biocache.util.QueueTimeSamples;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.collections.map.LRUMap;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Caches species counts using left/right values and an optional fq term.
  *
+ * Counts are refreshed in the background by a bounded pool. Stale counts continue to be returned while
+ * they are refreshed, and a query is only queued for refresh once at a time. When the index version
+ * changes all cached queries are queued for refresh.
+ *
  * Created by Adam Collins on 21/09/15.
  */
 @Component("SpeciesCountsService")
@@ -57,173 +66,300 @@ public class SpeciesCountsService {
     @Value("${autocomplete.species.counts.enabled:true}")
     private Boolean enabled;
 
+    /**
+     * Maximum number of queries with cached counts
+     */
+    @Value("${species.counts.cache.size:100}")
+    protected Integer cacheSize = 100;
+
+    /**
+     * Number of threads refreshing counts
+     */
+    @Value("${species.counts.refresh.threads:2}")
+    protected Integer refreshThreads = 2;
+
+    /**
+     * Maximum number of queries waiting for a refresh. Further refreshes are dropped until there is room.
+     */
+    @Value("${species.counts.refresh.queue:100}")
+    protected Integer refreshQueueSize = 100;
+
     //left and left counts by q, fq, qc
     final Object cacheLock = new Object();
-    LRUMap cache = new LRUMap();
-    final Object updatelock = new Object();
+    LRUMap cache;
+
+    //queries queued or being refreshed
+    final Set<String> refreshing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private volatile ThreadPoolExecutor refreshExecutor;
 
-    //record of updates in queue
-    final Object updatingLock = new Object();
-    Map<Integer, Boolean> updatingList = new ConcurrentHashMap<Integer, Boolean>();
+    private final QueueTimeSamples refreshTimes = new QueueTimeSamples(1000);
+    private final AtomicLong refreshFailures = new AtomicLong();
+    private final AtomicLong refreshesDropped = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        searchDAO.addIndexVersionListener(new IndexVersionListener() {
+            @Override
+            public void indexVersionChanged(long previousVersion, long indexVersion) {
+                refreshAll(indexVersion);
+            }
+        });
+    }
 
     /**
      * retrieve left + count + index version
      *
-     * @return
+     * @return the cached counts, which may be stale, or null when they are not yet available
      */
     public SpeciesCountDTO getCounts(String[] filterQuery) {
         if (!enabled) return null;
 
+        String key = getKey(filterQuery);
+
+        CachedCounts cached;
+        synchronized (cacheLock) {
+            cached = (CachedCounts) getCache().get(key);
+        }
+
+        if (cached == null || isStale(cached.counts, searchDAO.getIndexVersion(false))) {
+            refresh(key, filterQuery);
+        }
+
+        return cached == null ? null : cached.counts;
+    }
+
+    /**
+     * @return queue depth, active and failed refreshes, and refresh time percentiles (ms)
+     */
+    public Map<String, Object> getRefreshMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        ThreadPoolExecutor executor = refreshExecutor;
+        metrics.put("queueDepth", executor == null ? 0 : executor.getQueue().size());
+        metrics.put("activeRefreshes", executor == null ? 0 : executor.getActiveCount());
+        metrics.put("pendingRefreshes", refreshing.size());
+        metrics.put("droppedRefreshes", refreshesDropped.get());
+        metrics.put("failedRefreshes", refreshFailures.get());
+        synchronized (cacheLock) {
+            metrics.put("cachedQueries", getCache().size());
+        }
+        metrics.put("refreshTimes", refreshTimes.getPercentiles());
+        return metrics;
+    }
+
+    /**
+     * Counts are stale when the index has changed and they are older than cacheMinAge.
+     */
+    private boolean isStale(SpeciesCountDTO counts, long indexVersion) {
+        return cacheMinAge + counts.getAge() < System.currentTimeMillis() && indexVersion != counts.getIndexVersion();
+    }
+
+    /**
+     * Queue all stale cached counts for refresh.
+     */
+    private void refreshAll(long indexVersion) {
+        List<CachedCounts> all;
+        synchronized (cacheLock) {
+            all = new ArrayList<CachedCounts>(getCache().values());
+        }
+        for (CachedCounts cached : all) {
+            if (isStale(cached.counts, indexVersion)) {
+                refresh(cached.key, cached.filterQuery);
+            }
+        }
+    }
+
+    /**
+     * Queue a refresh of the counts for a query, unless one is already queued.
+     */
+    private void refresh(final String key, final String[] filterQuery) {
+        if (!refreshing.add(key)) {
+            return;
+        }
+        try {
+            getRefreshExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        update(key, filterQuery);
+                    } finally {
+                        refreshing.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //queue is full, the next request for this query will try again
+            refreshing.remove(key);
+            refreshesDropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Query the lft facet and cache the sorted lft values and counts.
+     */
+    void update(String key, String[] filterQuery) {
+        long startTime = System.currentTimeMillis();
+        SpatialSearchRequestParams params = getParams(filterQuery);
+        try {
+            logger.debug("updating species counts for query: " + params.toString());
+            long indexVersion = searchDAO.getIndexVersion(false);
+            SearchResultDTO qr = searchDAO.findByFulltextSpatialQuery(params, null);
+
+            //get lft and count
+            Map<Long, Long> map = new HashMap<Long, Long>();
+            for (FacetResultDTO fr : qr.getFacetResults()) {
+                for (FieldResultDTO r : fr.getFieldResult()) {
+                    if (StringUtils.isNotEmpty(r.getLabel())) {
+                        map.put(Long.parseLong(r.getLabel()), r.getCount());
+                    }
+                }
+            }
+
+            //sort keys
+            long[] left = new long[map.size()];
+            List<Long> keys = new ArrayList<Long>(map.keySet());
+            for (int i = 0; i < left.length; i++) {
+                left[i] = keys.get(i);
+            }
+            java.util.Arrays.sort(left);
+
+            //get sorted values
+            long[] leftCount = new long[map.size()];
+            for (int i = 0; i < leftCount.length; i++) {
+                leftCount[i] = map.get(left[i]);
+            }
+
+            CachedCounts cached = new CachedCounts(key, filterQuery, new SpeciesCountDTO(left, leftCount, indexVersion));
+
+            //store in map
+            synchronized (cacheLock) {
+                getCache().put(key, cached);
+            }
+
+            refreshTimes.add(System.currentTimeMillis() - startTime);
+        } catch (Exception e) {
+            refreshFailures.incrementAndGet();
+            logger.error("failed to update species counts for : " + params.toString(), e);
+        }
+    }
+
+    private SpatialSearchRequestParams getParams(String[] filterQuery) {
         //lft counts for the query
         SpatialSearchRequestParams params = new SpatialSearchRequestParams();
-        StringBuilder fq = new StringBuilder();
         if (filterQuery == null || filterQuery.length == 0) {
             params.setQ("*:*");
-            fq.append("*:*");
         } else {
             params.setQ(filterQuery[0]);
-            fq.append(filterQuery[0]);
             if (filterQuery.length > 1) {
-                String[] fqs = Arrays.copyOfRange(filterQuery, 1, filterQuery.length);
-                params.setFacets(fqs);
-                for (String s : fqs) {
-                    fq.append(s);
-                }
+                params.setFq(Arrays.copyOfRange(filterQuery, 1, filterQuery.length));
             }
         }
         params.setPageSize(0);
         params.setFacet(true);
         params.setFacets(new String[]{"lft"});
         params.setFlimit(-1);
+        return params;
+    }
 
-        //hash code
-        int hashCode = fq.toString().hashCode();
-
-        SpeciesCountDTO counts;
-        synchronized (cacheLock) {
-            counts = (SpeciesCountDTO) cache.get(hashCode);
+    /**
+     * @return cache key containing every term of the query, so that different queries can not share counts
+     */
+    private String getKey(String[] filterQuery) {
+        if (filterQuery == null || filterQuery.length == 0) {
+            return "*:*";
+        }
+        StringBuilder key = new StringBuilder();
+        for (String fq : filterQuery) {
+            //length prefix so that terms containing the separator can not be confused
+            key.append(fq == null ? 0 : fq.length()).append(':').append(fq).append('\n');
         }
+        return key.toString();
+    }
 
-        //refresh if cache missing and not refreshed recently (cacheMinAge)
-        long indexVersion = searchDAO.getIndexVersion(false);
-        if (counts == null || (cacheMinAge + counts.getAge() < System.currentTimeMillis() && indexVersion != counts.getIndexVersion())) {
-            //old counts that need one update scheduled
-            synchronized (updatingLock) {
-                Boolean updating = updatingList.get(hashCode);
+    private LRUMap getCache() {
+        if (cache == null) {
+            cache = new LRUMap(cacheSize);
+        }
+        return cache;
+    }
 
-                if (updating == null) {
-                    updatingList.put(hashCode, true);
-                    Thread updateThread = new UpdateThread(this, hashCode, params);
-                    updateThread.start();
+    private ThreadPoolExecutor getRefreshExecutor() {
+        ThreadPoolExecutor nextExecutor = refreshExecutor;
+        if (nextExecutor == null) {
+            synchronized (this) {
+                nextExecutor = refreshExecutor;
+                if (nextExecutor == null) {
+                    nextExecutor = new ThreadPoolExecutor(refreshThreads, refreshThreads, 60L, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(refreshQueueSize),
+                            new ThreadFactoryBuilder().setNameFormat("biocache-species-counts-%d")
+                                    .setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+                    nextExecutor.allowCoreThreadTimeOut(true);
+                    refreshExecutor = nextExecutor;
                 }
             }
         }
-
-        return counts;
+        return nextExecutor;
     }
 
     public boolean isEnabled() {
         return enabled;
     }
 
+    /**
+     * Occurrence count for a taxon, summed over the lft values within its left and right values.
+     *
+     * @param counts
+     * @param left
+     * @param right
+     * @return
+     */
     public long getCount(SpeciesCountDTO counts, long left, long right) {
-        if (counts == null || counts.getLft() == null) {
+        if (counts == null) {
             return 0;
         }
-        long[] lft = counts.getLft();
-        long[] count = counts.getCounts();
-
-        int pos = java.util.Arrays.binarySearch(lft, left);
-        if (pos < 0) {
-            pos = -1 * pos - 1;
-        }
+        return counts.getCount(left, right);
+    }
 
-        long sum = 0;
-        while (pos < lft.length && lft[pos] <= right) {
-            sum += count[pos++];
+    /**
+     * Occurrence counts for a list of taxa.
+     *
+     * @param counts
+     * @param left left value of each taxon
+     * @param right right value of each taxon
+     * @return count for each taxon, in the same order as left
+     */
+    public long[] getCounts(SpeciesCountDTO counts, long[] left, long[] right) {
+        long[] result = new long[left.length];
+        if (counts != null) {
+            for (int i = 0; i < left.length; i++) {
+                result[i] = counts.getCount(left[i], right[i]);
+            }
         }
-        return sum;
+        return result;
     }
 
+    /**
+     * Queue all cached counts for refresh. Cached counts are still returned until they are refreshed.
+     */
     public void resetCache() {
+        List<CachedCounts> all;
         synchronized (cacheLock) {
-            cache.clear();
+            all = new ArrayList<CachedCounts>(getCache().values());
+        }
+        for (CachedCounts cached : all) {
+            refresh(cached.key, cached.filterQuery);
         }
     }
 
-}
-
-class UpdateThread extends Thread {
-
-    private static final Logger logger = Logger.getLogger(UpdateThread.class);
-
-    SpeciesCountsService speciesCountsService;
-    int hashCode;
-    SpatialSearchRequestParams params;
-
-    public UpdateThread(SpeciesCountsService speciesCountsService, int hashCode, SpatialSearchRequestParams params) {
-        this.speciesCountsService = speciesCountsService;
-        this.hashCode = hashCode;
-        this.params = params;
-    }
-
-    @Override
-    public void run() {
-        synchronized (speciesCountsService.updatelock) {
-            //check if another has already updated this query
-            synchronized (speciesCountsService.cacheLock) {
-                if (speciesCountsService.cache.get(hashCode) != null) {
-                    //remove this from the update list
-                    synchronized (speciesCountsService.updatingLock) {
-                        speciesCountsService.updatingList.remove(hashCode);
-                    }
-                    return;
-                }
-            }
-
-            //not found, update now
-            try {
-                logger.debug("updating species counts for query: " + params.toString());
-                SearchResultDTO qr = speciesCountsService.searchDAO.findByFulltextSpatialQuery(params, null);
-
-                //get lft and count
-                Map<Long, Long> map = new HashMap<Long, Long>();
-                for (FacetResultDTO fr : qr.getFacetResults()) {
-                    for (FieldResultDTO r : fr.getFieldResult()) {
-                        if (StringUtils.isNotEmpty(r.getLabel())) {
-                            map.put(Long.parseLong(r.getLabel()), r.getCount());
-                        }
-                    }
-                }
-
-                //sort keys
-                long[] left = new long[map.size()];
-                List<Long> keys = new ArrayList<Long>(map.keySet());
-                for (int i = 0; i < left.length; i++) {
-                    left[i] = keys.get(i);
-                }
-                java.util.Arrays.sort(left);
-
-                //get sorted values
-                long[] leftCount = new long[map.size()];
-                for (int i = 0; i < leftCount.length; i++) {
-                    leftCount[i] = map.get(left[i]);
-                }
-
-                SpeciesCountDTO counts = new SpeciesCountDTO(left, leftCount, speciesCountsService.searchDAO.getIndexVersion(false));
+    private static class CachedCounts {
+        final String key;
+        final String[] filterQuery;
+        final SpeciesCountDTO counts;
 
-                //store in map
-                synchronized (speciesCountsService.cacheLock) {
-                    speciesCountsService.cache.put(hashCode, counts);
-                }
-
-            } catch (Exception e) {
-                logger.error("failed to update species counts for : " + params.toString());
-            }
-        }
-        //remove this from the update list
-        synchronized (speciesCountsService.updatingLock) {
-            speciesCountsService.updatingList.remove(hashCode);
+        CachedCounts(String key, String[] filterQuery, SpeciesCountDTO counts) {
+            this.key = key;
+            this.filterQuery = filterQuery;
+            this.counts = counts;
         }
     }
 }
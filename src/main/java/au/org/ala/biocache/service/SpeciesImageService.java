@@ -142,33 +142,28 @@ public class SpeciesImageService {
 
     public SpeciesImageDTO get(long left, long right) {
         SpeciesImagesDTO speciesImages = getSpeciesImages();
-        if (speciesImages == null || speciesImages.getLft() == null) {
+        if (speciesImages == null) {
             return null;
         }
-        long[] lft = speciesImages.getLft();
-        SpeciesImageDTO[] images = speciesImages.getSpeciesImage();
-
-        int pos = java.util.Arrays.binarySearch(lft, left);
-        if (pos < 0) {
-            pos = -1 * pos - 1;
-        }
-
-        //get the first image
-        SpeciesImageDTO ret = null;
-        if (pos < lft.length && lft[pos] < right) {
-            ret = new SpeciesImageDTO(images[pos].getDataResourceUid(), images[pos].getImage());
-        }
-
-        long sum = 0;
-        while (pos < lft.length && lft[pos] < right) {
-            sum += images[pos++].getCount();
-        }
+        return speciesImages.get(left, right);
+    }
 
-        if (ret != null && sum > 0) {
-            ret.setCount(sum);
+    /**
+     * First image and image count for a list of taxa.
+     *
+     * @param left left value of each taxon
+     * @param right right value of each taxon
+     * @return image for each taxon, in the same order as left. Elements are null when there is no image.
+     */
+    public SpeciesImageDTO[] get(long[] left, long[] right) {
+        SpeciesImageDTO[] result = new SpeciesImageDTO[left.length];
+        SpeciesImagesDTO speciesImages = getSpeciesImages();
+        if (speciesImages != null) {
+            for (int i = 0; i < left.length; i++) {
+                result[i] = speciesImages.get(left[i], right[i]);
+            }
         }
-
-        return ret;
+        return result;
     }
 
     public void resetCache() {
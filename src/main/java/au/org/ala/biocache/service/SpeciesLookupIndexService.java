@@ -5,6 +5,7 @@ import au.org.ala.biocache.Config;
 import au.org.ala.biocache.dto.SpeciesCountDTO;
 import au.org.ala.biocache.dto.SpeciesImageDTO;
 import au.org.ala.biocache.util.ALANameSearcherExt;
+import au.org.ala.biocache.util.AutocompleteIndex;
 import au.org.ala.names.model.LinnaeanRankClassification;
 import au.org.ala.names.model.NameSearchResult;
 import au.org.ala.names.search.ExcludedNameException;
@@ -45,6 +46,9 @@ public class SpeciesLookupIndexService implements SpeciesLookupService {
 
     private ALANameSearcherExt nameIndex = null;
 
+    /** in memory autocomplete index, null until it is built */
+    private volatile AutocompleteIndex autocompleteIndex = null;
+
     private ALANameSearcherExt getNameIndex() throws RuntimeException {
         if(nameIndex == null){
             try {
@@ -56,6 +60,29 @@ public class SpeciesLookupIndexService implements SpeciesLookupService {
         return nameIndex;
     }
 
+    /**
+     * Build the in memory autocomplete index in the background. Autocomplete uses the name index
+     * until it is built.
+     */
+    public void buildAutocompleteIndex() {
+        Thread t = new Thread("biocache-autocomplete-index") {
+            @Override
+            public void run() {
+                try {
+                    long start = System.currentTimeMillis();
+                    AutocompleteIndex index = getNameIndex().buildAutocompleteIndex();
+                    autocompleteIndex = index;
+                    logger.info("autocomplete index of " + index.size() + " names built in " + (System.currentTimeMillis() - start) + "ms");
+                } catch (Exception e) {
+                    logger.error("failed to build the autocomplete index, using the name index for autocomplete", e);
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
     @Override
     public String getGuidForName(String name) {
         String lsid = null;
@@ -235,12 +262,30 @@ public class SpeciesLookupIndexService implements SpeciesLookupService {
         // TODO: better method of dealing with records with 0 occurrences being removed.
         int maxFind = includeAll ? max : max + 1000;
 
-        List<Map> results = getNameIndex().autocomplete(query, maxFind, includeSynonyms);
+        final SpeciesCountDTO countlist = counts ? speciesCountsService.getCounts(filterQuery) : null;
+
+        List<Map> results = null;
+        AutocompleteIndex index = autocompleteIndex;
+        if (index != null) {
+            //the index applies the count filter below while it selects the best matches, so only max are needed
+            AutocompleteIndex.TaxonFilter filter = null;
+            if (speciesCountsService.isEnabled() && !includeAll) {
+                filter = new AutocompleteIndex.TaxonFilter() {
+                    @Override
+                    public boolean accept(long left, long right) {
+                        return countlist != null && countlist.getCount(left, right) > 0;
+                    }
+                };
+            }
+            results = getNameIndex().autocomplete(index, query, max, includeSynonyms, filter);
+        }
+        if (results == null || results.size() < max) {
+            //the index only matches the start of words, the name index queries also find mid-word matches
+            results = getNameIndex().autocomplete(query, maxFind, includeSynonyms);
+        }
 
         List<Map> output = new ArrayList();
 
-        SpeciesCountDTO countlist = counts ? speciesCountsService.getCounts(filterQuery) : null;
-
         //sort by rank, then score, then name
         Collections.sort(results, new Comparator<Map>() {
             @Override
@@ -253,21 +298,35 @@ public class SpeciesLookupIndexService implements SpeciesLookupService {
             }
         });
 
+        //left and right values of each result, results without them are skipped
+        long[] left = new long[results.size()];
+        long[] right = new long[results.size()];
+        boolean[] valid = new boolean[results.size()];
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                left[i] = Long.parseLong(results.get(i).get("left").toString());
+                right[i] = Long.parseLong(results.get(i).get("right").toString());
+                valid[i] = true;
+            } catch (Exception e) {
+            }
+        }
+
+        //count all results at once
+        long[] countResults = counts ? speciesCountsService.getCounts(countlist, left, right) : null;
+
         //add counter and filter output
         for (int i = 0; i < results.size() && output.size() < max; i++) {
-            Map nsr = results.get(i);
-            try {
-                long count = counts ? speciesCountsService.getCount(countlist, Long.parseLong(nsr.get("left").toString()), Long.parseLong(nsr.get("right").toString())) : 0;
+            if (!valid[i]) continue;
 
-                if (!speciesCountsService.isEnabled() || count > 0 || includeAll) {
-                    if (counts) nsr.put("count", count);
+            Map nsr = results.get(i);
+            long count = counts ? countResults[i] : 0;
 
-                    nsr.put("images", speciesImageService.get(Long.parseLong((String) nsr.get("left")), Long.parseLong((String) nsr.get("right"))));
+            if (!speciesCountsService.isEnabled() || count > 0 || includeAll) {
+                if (counts) nsr.put("count", count);
 
-                    output.add(nsr);
-                }
-            } catch (Exception e) {
+                nsr.put("images", speciesImageService.get(left[i], right[i]));
 
+                output.add(nsr);
             }
         }
 
@@ -279,6 +338,7 @@ public class SpeciesLookupIndexService implements SpeciesLookupService {
         Map wrapper = new HashMap();
         wrapper.put("pageSize", max);
         wrapper.put("startIndex", 0);
+        //when the autocomplete index found max matches this is max, not the number of all matches
         wrapper.put("totalRecords", results.size());
         wrapper.put("sort", "score");
         wrapper.put("dir", "desc");
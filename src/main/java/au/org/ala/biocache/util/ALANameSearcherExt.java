@@ -18,7 +18,9 @@ import au.org.ala.names.model.LinnaeanRankClassification;
 import au.org.ala.names.model.NameSearchResult;
 import au.org.ala.names.model.RankType;
 import au.org.ala.names.search.*;
+import org.apache.log4j.Logger;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.*;
 import org.apache.solr.client.solrj.util.ClientUtils;
@@ -37,6 +39,7 @@ import java.util.Map;
  */
 public class ALANameSearcherExt extends ALANameSearcher {
 
+    private static final Logger logger = Logger.getLogger(ALANameSearcherExt.class);
 
     private IndexSearcher identifierIdxSearcher = null;
     private IndexSearcher vernIdxSearcher = null;
@@ -394,6 +397,78 @@ public class ALANameSearcherExt extends ALANameSearcher {
         return null;
     }
 
+    /**
+     * Build an in memory autocomplete index of the scientific names and common names in the name index.
+     *
+     * @return
+     * @throws IOException
+     */
+    public AutocompleteIndex buildAutocompleteIndex() throws IOException {
+        AutocompleteIndex.Builder builder = new AutocompleteIndex.Builder();
+
+        IndexReader reader = getIdentifierIdxSearcher().getIndexReader();
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            try {
+                NameSearchResult nsr = new NameSearchResult(reader.document(i), null);
+                builder.addTaxon(nsr.getLsid(),
+                        nsr.getRankClassification() != null ? nsr.getRankClassification().getScientificName() : null,
+                        nsr.getLeft(), nsr.getRight(), nsr.getRank() != null ? nsr.getRank().getId() : null,
+                        nsr.getAcceptedLsid());
+            } catch (Exception e) {
+                logger.debug("skipping name index document " + i + " for autocomplete: " + e.getMessage());
+            }
+        }
+
+        reader = getVernIdxSearcher().getIndexReader();
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            Document doc = reader.document(i);
+            builder.addCommonName(doc.get("lsid"), doc.get("common_orig"));
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Autocomplete using an in memory autocomplete index. All matches are resolved to accepted LSID.
+     *
+     * @param index
+     * @param q
+     * @param max
+     * @param includeSynonyms
+     * @param filter optional filter of accepted taxa, applied before max
+     * @return
+     */
+    public List<Map> autocomplete(AutocompleteIndex index, String q, int max, boolean includeSynonyms, AutocompleteIndex.TaxonFilter filter) {
+        List<Map> output = new ArrayList<Map>();
+        for (AutocompleteIndex.Match match : index.search(q, max, includeSynonyms, filter)) {
+            NameSearchResult nsr = searchForRecordByLsid(match.getLsid());
+            if (nsr == null) continue;
+
+            Map m = formatAutocompleteNsr(match.getScore(), nsr);
+            Map matched = m;
+            if (match.getSynonymLsid() != null) {
+                NameSearchResult synonym = searchForRecordByLsid(match.getSynonymLsid());
+                if (synonym != null) {
+                    matched = formatAutocompleteNsr(match.getScore(), synonym);
+                    List list = new ArrayList();
+                    list.add(matched);
+                    m.put("synonymMatch", list);
+                }
+            }
+
+            //use the matched common name
+            if (match.getCommonName() != null) {
+                matched.put("commonname", match.getCommonName());
+                matched.put("match", "commonName");
+            } else {
+                matched.put("match", "scientificName");
+            }
+
+            output.add(m);
+        }
+        return output;
+    }
+
     private Map formatAutocompleteNsr(float score, NameSearchResult nsr) {
         Map m = new HashMap();
         m.put("score", score);
@@ -0,0 +1,229 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.collections.map.LRUMap;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Caches the results of API key checks.
+ * <p>
+ * Valid and invalid keys are cached for their own periods. Only one check of a key is made at a time; concurrent
+ * requests with the same key wait for that check. A valid key is checked again in the background before it
+ * expires, so requests with a key in regular use do not wait on the API key service. When the API key service
+ * can not be reached the result is not cached and an expired result is used, if there is one.
+ */
+@Component("apiKeyCache")
+public class ApiKeyCache {
+
+    private final static Logger logger = Logger.getLogger(ApiKeyCache.class);
+
+    private static final ObjectMapper om = new ObjectMapper();
+
+    /** Time (ms) a valid key is cached */
+    @Value("${api.check.cache.ttl:3600000}")
+    protected Long validTtl = 3600000L;
+
+    /** Time (ms) an invalid key is cached */
+    @Value("${api.check.cache.negativeTtl:300000}")
+    protected Long invalidTtl = 300000L;
+
+    /** Age (ms) after which a valid key is checked again in the background */
+    @Value("${api.check.cache.refresh:2700000}")
+    protected Long refreshAge = 2700000L;
+
+    /** Maximum number of cached keys */
+    @Value("${api.check.cache.size:10000}")
+    protected Integer cacheSize = 10000;
+
+    @Value("${api.check.timeout.connect:5000}")
+    protected Integer connectTimeout = 5000;
+
+    @Value("${api.check.timeout.read:5000}")
+    protected Integer readTimeout = 5000;
+
+    private final Object cacheLock = new Object();
+    private LRUMap cache;
+
+    /** checks in progress */
+    private final ConcurrentMap<String, FutureTask<Boolean>> checking = new ConcurrentHashMap<String, FutureTask<Boolean>>();
+
+    /** keys with a background check queued or in progress */
+    private final Set<String> refreshing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private volatile ExecutorService refreshExecutor;
+
+    /**
+     * @param apiCheckUrl url of the API key service, the key is appended
+     * @param key
+     * @return true when the key is valid
+     */
+    public boolean isValid(String apiCheckUrl, String key) {
+        long now = System.currentTimeMillis();
+        CachedKey cached;
+        synchronized (cacheLock) {
+            cached = (CachedKey) getCache().get(key);
+        }
+
+        if (cached != null && now - cached.checked < (cached.valid ? validTtl : invalidTtl)) {
+            if (cached.valid && now - cached.checked > refreshAge) {
+                refresh(apiCheckUrl, key);
+            }
+            return cached.valid;
+        }
+
+        Boolean valid = check(apiCheckUrl, key);
+        if (valid == null) {
+            //API key service is unavailable, use the expired result
+            return cached != null && cached.valid;
+        }
+        return valid;
+    }
+
+    /**
+     * Check the key in the background.
+     */
+    private void refresh(final String apiCheckUrl, final String key) {
+        if (!refreshing.add(key)) {
+            return;
+        }
+        try {
+            getRefreshExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        check(apiCheckUrl, key);
+                    } finally {
+                        refreshing.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(key);
+        }
+    }
+
+    /**
+     * Check the key with the API key service, or wait for a check that is already in progress.
+     *
+     * @return the result of the check, or null when the API key service could not be reached
+     */
+    private Boolean check(final String apiCheckUrl, final String key) {
+        FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                Boolean valid = request(apiCheckUrl, key);
+                if (valid != null) {
+                    synchronized (cacheLock) {
+                        getCache().put(key, new CachedKey(valid, System.currentTimeMillis()));
+                    }
+                }
+                return valid;
+            }
+        });
+
+        FutureTask<Boolean> existing = checking.putIfAbsent(key, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                checking.remove(key, task);
+            }
+        } else {
+            task = existing;
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error("Failed to check api key", e.getCause());
+        }
+        return null;
+    }
+
+    /**
+     * @return the response of the API key service, or null when it could not be reached
+     */
+    private Boolean request(String apiCheckUrl, String key) {
+        InputStream is = null;
+        try {
+            logger.debug("Checking api key: " + key);
+            URLConnection connection = new URL(apiCheckUrl + URLEncoder.encode(key, "UTF-8")).openConnection();
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            is = connection.getInputStream();
+            Map<String, Object> response = om.readValue(is, Map.class);
+            logger.debug("Checking api key: " + key + ", valid: " + response.get("valid"));
+            return Boolean.TRUE.equals(response.get("valid"));
+        } catch (Exception e) {
+            logger.error("Failed to check api key with " + apiCheckUrl + ": " + e.getMessage(), e);
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (Exception e) {
+                }
+            }
+        }
+    }
+
+    private LRUMap getCache() {
+        if (cache == null) {
+            cache = new LRUMap(cacheSize);
+        }
+        return cache;
+    }
+
+    private ExecutorService getRefreshExecutor() {
+        ExecutorService nextExecutor = refreshExecutor;
+        if (nextExecutor == null) {
+            synchronized (this) {
+                nextExecutor = refreshExecutor;
+                if (nextExecutor == null) {
+                    nextExecutor = refreshExecutor = Executors.newSingleThreadExecutor(
+                            new ThreadFactoryBuilder().setNameFormat("biocache-apikey-refresh-%d")
+                                    .setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+                }
+            }
+        }
+        return nextExecutor;
+    }
+
+    private static class CachedKey {
+        final boolean valid;
+        final long checked;
+
+        CachedKey(boolean valid, long checked) {
+            this.valid = valid;
+            this.checked = checked;
+        }
+    }
+}
@@ -0,0 +1,554 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import java.util.*;
+
+/**
+ * In memory prefix index of scientific and common names for autocomplete.
+ * <p>
+ * Every word of every name starts a key. The keys are kept in a single sorted array, so the keys that begin
+ * with a query are a contiguous range found with two binary searches. A max segment tree over the key
+ * priorities returns the best keys of that range in priority order, without sorting the range.
+ * <p>
+ * The priority is the order used for autocomplete results: score * (10000 - rankId). The score is 12 for an
+ * exact match, 2 when the name begins with the query and 1 when a later word of the name begins with the query.
+ * <p>
+ * Immutable once built and safe for concurrent searches.
+ */
+public class AutocompleteIndex {
+
+    public static final int EXACT_SCORE = 12;
+    public static final int PREFIX_SCORE = 2;
+    public static final int WORD_SCORE = 1;
+
+    /** rankId of names without a rank */
+    private static final int NO_RANK = 10000;
+
+    /** maximum number of keys examined beyond max, when taxa are excluded by synonyms or the filter */
+    private static final int SCAN_LIMIT = 10000;
+
+    private final String[] taxonLsid;
+    /** -1 when the taxon has no left value */
+    private final long[] taxonLeft;
+    private final long[] taxonRight;
+    private final int[] taxonRank;
+    /** ordinal of the accepted taxon, the taxon itself when it is accepted, or -1 when it is not in the index */
+    private final int[] taxonAccepted;
+
+    /** normalised names */
+    private final String[] names;
+    /** common names as found in the name index, null for scientific names */
+    private final String[] commonNames;
+    private final int[] nameTaxon;
+
+    /** sorted keys, each is the suffix of names[keyName[i]] from keyOffset[i] */
+    private final int[] keyName;
+    private final int[] keyOffset;
+    private final int[] keyPriority;
+
+    /** max segment tree of key positions, with the leaves at tree[keyName.length + i] */
+    private final int[] tree;
+
+    /**
+     * Taxa accepted for autocomplete results, e.g. taxa with occurrences.
+     */
+    public interface TaxonFilter {
+        boolean accept(long left, long right);
+    }
+
+    private AutocompleteIndex(String[] taxonLsid, long[] taxonLeft, long[] taxonRight, int[] taxonRank,
+                              int[] taxonAccepted, String[] names, String[] commonNames, int[] nameTaxon,
+                              int[] keyName, int[] keyOffset) {
+        this.taxonLsid = taxonLsid;
+        this.taxonLeft = taxonLeft;
+        this.taxonRight = taxonRight;
+        this.taxonRank = taxonRank;
+        this.taxonAccepted = taxonAccepted;
+        this.names = names;
+        this.commonNames = commonNames;
+        this.nameTaxon = nameTaxon;
+        this.keyName = keyName;
+        this.keyOffset = keyOffset;
+
+        int n = keyName.length;
+        keyPriority = new int[n];
+        for (int i = 0; i < n; i++) {
+            keyPriority[i] = (keyOffset[i] == 0 ? PREFIX_SCORE : WORD_SCORE) * rankFactor(nameTaxon[keyName[i]]);
+        }
+
+        tree = new int[2 * n];
+        for (int i = 0; i < n; i++) {
+            tree[n + i] = i;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            tree[i] = better(tree[2 * i], tree[2 * i + 1]);
+        }
+    }
+
+    /**
+     * @return number of names in the index
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Find the best taxa with a name, or a word of a name, that begins with the query.
+     * <p>
+     * Synonyms and common names are resolved to the accepted taxon and each taxon is returned once, for its best
+     * match. Taxa without left and right values are not returned.
+     *
+     * @param q               query
+     * @param max             maximum number of matches
+     * @param includeSynonyms when false names of synonyms are not matched
+     * @param filter          optional filter of the accepted taxa
+     * @return matches in priority order
+     */
+    public List<Match> search(String q, int max, boolean includeSynonyms, TaxonFilter filter) {
+        List<Match> matches = new ArrayList<Match>();
+        String nq = normalise(q);
+        if (nq.length() == 0 || keyName.length == 0 || max <= 0) {
+            return matches;
+        }
+
+        int lo = find(nq, false);
+        int hi = find(nq, true);
+
+        //keys equal to the query sort before the longer keys that begin with it
+        int exactEnd = lo;
+        while (exactEnd < hi && names[keyName[exactEnd]].length() - keyOffset[exactEnd] == nq.length()) {
+            exactEnd++;
+        }
+
+        Cursor cursor = new Cursor(lo, exactEnd, hi);
+        Set<Integer> seen = new HashSet<Integer>();
+        int scanned = 0;
+        int k;
+        while (matches.size() < max && scanned++ < max + SCAN_LIMIT && (k = cursor.next()) >= 0) {
+            int name = keyName[k];
+            int taxon = nameTaxon[name];
+            int accepted = taxonAccepted[taxon];
+            if (accepted < 0 || (accepted != taxon && !includeSynonyms) || taxonLeft[accepted] < 0) {
+                continue;
+            }
+            if (!seen.add(accepted)) {
+                continue;
+            }
+            if (filter != null && !filter.accept(taxonLeft[accepted], taxonRight[accepted])) {
+                continue;
+            }
+
+            int score = cursor.isExact() ? EXACT_SCORE : keyOffset[k] == 0 ? PREFIX_SCORE : WORD_SCORE;
+            matches.add(new Match(taxonLsid[accepted], accepted != taxon ? taxonLsid[taxon] : null,
+                    commonNames[name], taxonLeft[accepted], taxonRight[accepted], taxonRank[accepted], score));
+        }
+        return matches;
+    }
+
+    /**
+     * Lower case and collapse white space.
+     *
+     * @param s
+     * @return
+     */
+    public static String normalise(String s) {
+        if (s == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        boolean space = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+            } else {
+                if (space) {
+                    sb.append(' ');
+                    space = false;
+                }
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param q     normalised query
+     * @param after false for the first key that begins with q or sorts after it, true for the first key that
+     *              sorts after all keys that begin with q
+     * @return key position
+     */
+    private int find(String q, boolean after) {
+        int lo = 0;
+        int hi = keyName.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = comparePrefix(mid, q);
+            if (c < 0 || (after && c == 0)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return 0 when the key begins with q, otherwise the sort order of the key relative to q
+     */
+    private int comparePrefix(int key, String q) {
+        String name = names[keyName[key]];
+        int offset = keyOffset[key];
+        int length = name.length() - offset;
+        int n = Math.min(length, q.length());
+        for (int i = 0; i < n; i++) {
+            int c = name.charAt(offset + i) - q.charAt(i);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length >= q.length() ? 0 : -1;
+    }
+
+    private int rankFactor(int taxon) {
+        return NO_RANK - Math.max(0, Math.min(NO_RANK, taxonRank[taxon]));
+    }
+
+    /**
+     * @return the key with the higher priority, or the first key when they are equal. -1 is no key.
+     */
+    private int better(int a, int b) {
+        if (a < 0) return b;
+        if (b < 0) return a;
+        if (keyPriority[a] != keyPriority[b]) {
+            return keyPriority[a] > keyPriority[b] ? a : b;
+        }
+        return Math.min(a, b);
+    }
+
+    /**
+     * @return best key in the range [from, to), or -1 when the range is empty
+     */
+    private int best(int from, int to) {
+        int n = keyName.length;
+        int result = -1;
+        for (int l = from + n, r = to + n; l < r; l >>= 1, r >>= 1) {
+            if ((l & 1) == 1) result = better(result, tree[l++]);
+            if ((r & 1) == 1) result = better(result, tree[--r]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the keys in a range in priority order. Names equal to the query have their own priority and are
+     * merged with the keys of the range, which are taken from the segment tree one at a time. Those names are
+     * returned a second time from the range, with a lower priority.
+     */
+    private class Cursor {
+        private final int[] exact;
+        private int nextExact = 0;
+        private boolean lastExact = false;
+        private final PriorityQueue<int[]> ranges;
+
+        Cursor(int lo, int exactEnd, int hi) {
+            List<Integer> sorted = new ArrayList<Integer>();
+            for (int i = lo; i < exactEnd; i++) {
+                //a later word equal to the query is not an exact match of the name
+                if (keyOffset[i] == 0) {
+                    sorted.add(i);
+                }
+            }
+            Collections.sort(sorted, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    int c = exactPriority(o2) - exactPriority(o1);
+                    return c != 0 ? c : o1 - o2;
+                }
+            });
+            exact = new int[sorted.size()];
+            for (int i = 0; i < exact.length; i++) {
+                exact[i] = sorted.get(i);
+            }
+
+            ranges = new PriorityQueue<int[]>(16, new Comparator<int[]>() {
+                @Override
+                public int compare(int[] o1, int[] o2) {
+                    return better(o1[2], o2[2]) == o1[2] ? -1 : 1;
+                }
+            });
+            push(lo, hi);
+        }
+
+        /**
+         * @return the next key, or -1 when there are no more keys
+         */
+        int next() {
+            int[] range = ranges.peek();
+            lastExact = nextExact < exact.length
+                    && (range == null || exactPriority(exact[nextExact]) >= keyPriority[range[2]]);
+            if (lastExact) {
+                return exact[nextExact++];
+            }
+            if (range == null) {
+                return -1;
+            }
+            ranges.poll();
+            push(range[0], range[2]);
+            push(range[2] + 1, range[1]);
+            return range[2];
+        }
+
+        /**
+         * @return true when the last key returned is a name equal to the query
+         */
+        boolean isExact() {
+            return lastExact;
+        }
+
+        private void push(int from, int to) {
+            if (from < to) {
+                ranges.add(new int[]{from, to, best(from, to)});
+            }
+        }
+
+        private int exactPriority(int key) {
+            return EXACT_SCORE * rankFactor(nameTaxon[keyName[key]]);
+        }
+    }
+
+    /**
+     * An accepted taxon found by autocomplete.
+     */
+    public static class Match {
+        private final String lsid;
+        private final String synonymLsid;
+        private final String commonName;
+        private final long left;
+        private final long right;
+        private final int rankId;
+        private final float score;
+
+        Match(String lsid, String synonymLsid, String commonName, long left, long right, int rankId, float score) {
+            this.lsid = lsid;
+            this.synonymLsid = synonymLsid;
+            this.commonName = commonName;
+            this.left = left;
+            this.right = right;
+            this.rankId = rankId;
+            this.score = score;
+        }
+
+        /** @return lsid of the accepted taxon */
+        public String getLsid() {
+            return lsid;
+        }
+
+        /** @return lsid of the synonym that matched, or null when the accepted taxon matched */
+        public String getSynonymLsid() {
+            return synonymLsid;
+        }
+
+        /** @return the common name that matched, or null when a scientific name matched */
+        public String getCommonName() {
+            return commonName;
+        }
+
+        public long getLeft() {
+            return left;
+        }
+
+        public long getRight() {
+            return right;
+        }
+
+        public int getRankId() {
+            return rankId;
+        }
+
+        public float getScore() {
+            return score;
+        }
+    }
+
+    /**
+     * Collects taxa and names for an {@link AutocompleteIndex}. Not thread safe.
+     */
+    public static class Builder {
+        private final Map<String, Integer> taxa = new HashMap<String, Integer>();
+        private final List<String> lsids = new ArrayList<String>();
+        private final List<String> acceptedLsids = new ArrayList<String>();
+        private long[] left = new long[1024];
+        private long[] right = new long[1024];
+        private int[] rank = new int[1024];
+
+        private final List<String> names = new ArrayList<String>();
+        private final List<String> commonNames = new ArrayList<String>();
+        private final List<String> nameLsids = new ArrayList<String>();
+
+        /**
+         * Add a taxon and its scientific name. Further names can be added for the same lsid.
+         *
+         * @param lsid
+         * @param scientificName
+         * @param left           nested set left value, or null
+         * @param right          nested set right value, or null
+         * @param rankId         rank id, or null
+         * @param acceptedLsid   lsid of the accepted taxon when this is a synonym, otherwise null
+         */
+        public Builder addTaxon(String lsid, String scientificName, String left, String right, Integer rankId, String acceptedLsid) {
+            if (lsid == null) {
+                return this;
+            }
+            if (!taxa.containsKey(lsid)) {
+                int ordinal = lsids.size();
+                if (ordinal == rank.length) {
+                    this.left = Arrays.copyOf(this.left, ordinal * 2);
+                    this.right = Arrays.copyOf(this.right, ordinal * 2);
+                    this.rank = Arrays.copyOf(this.rank, ordinal * 2);
+                }
+                taxa.put(lsid, ordinal);
+                lsids.add(lsid);
+                acceptedLsids.add(acceptedLsid);
+                this.left[ordinal] = parse(left);
+                this.right[ordinal] = parse(right);
+                this.rank[ordinal] = rankId == null ? NO_RANK : rankId;
+            }
+            addName(lsid, scientificName, null);
+            return this;
+        }
+
+        /**
+         * Add a common name of a taxon. Common names of taxa that are not added are ignored.
+         *
+         * @param lsid
+         * @param commonName
+         */
+        public Builder addCommonName(String lsid, String commonName) {
+            if (lsid != null) {
+                addName(lsid, commonName, commonName);
+            }
+            return this;
+        }
+
+        private void addName(String lsid, String name, String commonName) {
+            String normalised = normalise(name);
+            if (normalised.length() > 0) {
+                names.add(normalised);
+                commonNames.add(commonName);
+                nameLsids.add(lsid);
+            }
+        }
+
+        private static long parse(String value) {
+            try {
+                return value == null ? -1 : Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        public AutocompleteIndex build() {
+            int taxonCount = lsids.size();
+
+            //resolve synonyms to accepted taxa, following synonyms of synonyms
+            int[] accepted = new int[taxonCount];
+            for (int i = 0; i < taxonCount; i++) {
+                int ordinal = i;
+                for (int hops = 0; ordinal >= 0 && acceptedLsids.get(ordinal) != null; hops++) {
+                    Integer next = taxa.get(acceptedLsids.get(ordinal));
+                    ordinal = next == null || hops >= 10 ? -1 : next;
+                }
+                accepted[i] = ordinal;
+            }
+
+            //names of known taxa
+            List<String> keptNames = new ArrayList<String>();
+            List<String> keptCommonNames = new ArrayList<String>();
+            int[] nameTaxon = new int[names.size()];
+            for (int i = 0; i < names.size(); i++) {
+                Integer taxon = taxa.get(nameLsids.get(i));
+                if (taxon != null) {
+                    nameTaxon[keptNames.size()] = taxon;
+                    keptNames.add(names.get(i));
+                    keptCommonNames.add(commonNames.get(i));
+                }
+            }
+            final String[] nameArray = keptNames.toArray(new String[keptNames.size()]);
+            nameTaxon = Arrays.copyOf(nameTaxon, nameArray.length);
+
+            //a key starts at each word of each name
+            int keyCount = 0;
+            for (String name : nameArray) {
+                keyCount += countWords(name);
+            }
+            final int[] keyName = new int[keyCount];
+            final int[] keyOffset = new int[keyCount];
+            int k = 0;
+            for (int i = 0; i < nameArray.length; i++) {
+                String name = nameArray[i];
+                for (int j = 0; j < name.length(); j++) {
+                    if (j == 0 || name.charAt(j - 1) == ' ') {
+                        keyName[k] = i;
+                        keyOffset[k] = j;
+                        k++;
+                    }
+                }
+            }
+
+            Integer[] order = new Integer[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    String a = nameArray[keyName[o1]];
+                    String b = nameArray[keyName[o2]];
+                    int ao = keyOffset[o1];
+                    int bo = keyOffset[o2];
+                    int n = Math.min(a.length() - ao, b.length() - bo);
+                    for (int i = 0; i < n; i++) {
+                        int c = a.charAt(ao + i) - b.charAt(bo + i);
+                        if (c != 0) {
+                            return c;
+                        }
+                    }
+                    return (a.length() - ao) - (b.length() - bo);
+                }
+            });
+            int[] sortedName = new int[keyCount];
+            int[] sortedOffset = new int[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                sortedName[i] = keyName[order[i]];
+                sortedOffset[i] = keyOffset[order[i]];
+            }
+
+            return new AutocompleteIndex(lsids.toArray(new String[taxonCount]), Arrays.copyOf(left, taxonCount),
+                    Arrays.copyOf(right, taxonCount), Arrays.copyOf(rank, taxonCount), accepted, nameArray,
+                    keptCommonNames.toArray(new String[nameArray.length]), nameTaxon, sortedName, sortedOffset);
+        }
+
+        private static int countWords(String name) {
+            int count = name.length() > 0 ? 1 : 0;
+            for (int i = 1; i < name.length(); i++) {
+                if (name.charAt(i - 1) == ' ') {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+}
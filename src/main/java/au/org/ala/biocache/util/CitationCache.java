@@ -0,0 +1,197 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestOperations;
+
+import javax.inject.Inject;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Caches the citations of collectory uids (institutions, collections, data providers and data resources)
+ * used in downloads.
+ * <p>
+ * Uids that are not cached are requested from the citation service in one batched call. Citations older
+ * than the refresh period are used as they are and refreshed in the background, so a download only waits
+ * on the citation service for uids it has not seen before. The cache is warmed when the
+ * {@link CollectionsCache} is updated.
+ */
+@Component("citationCache")
+public class CitationCache {
+
+    private final static Logger logger = Logger.getLogger(CitationCache.class);
+
+    @Value("${citations.url:http://collections.ala.org.au/ws/citations}")
+    protected String citationServiceUrl = "http://collections.ala.org.au/ws/citations";
+
+    @Value("${citations.enabled:true}")
+    protected Boolean enabled = Boolean.TRUE;
+
+    /** Age (ms) after which a citation is refreshed in the background */
+    @Value("${citations.cache.refresh:3600000}")
+    protected Long refreshAge = 3600000L;
+
+    /** Age (ms) after which a citation is no longer used and must be requested again */
+    @Value("${citations.cache.maxAge:604800000}")
+    protected Long maxAge = 604800000L;
+
+    /** Maximum number of uids in a single request to the citation service */
+    @Value("${citations.cache.batchSize:1000}")
+    protected Integer batchSize = 1000;
+
+    @Inject
+    protected RestOperations restTemplate;
+
+    private final ConcurrentMap<String, CachedCitation> cache = new ConcurrentHashMap<String, CachedCitation>();
+
+    /** uids with a background refresh outstanding */
+    private final Set<String> refreshing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private volatile ExecutorService refreshExecutor;
+
+    /**
+     * Get the citations of the uids, requesting only the uids that are not cached.
+     *
+     * @param uids
+     * @return the citations found, in the order of the uids
+     */
+    public List<Map<String, Object>> getCitations(Collection<String> uids) {
+        long now = System.currentTimeMillis();
+        List<String> missing = new ArrayList<String>();
+        List<String> stale = new ArrayList<String>();
+        for (String uid : uids) {
+            CachedCitation cached = cache.get(uid);
+            if (cached == null || now - cached.loaded > maxAge) {
+                missing.add(uid);
+            } else if (now - cached.loaded > refreshAge) {
+                stale.add(uid);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            load(missing);
+        }
+        if (!stale.isEmpty()) {
+            refresh(stale);
+        }
+
+        List<Map<String, Object>> citations = new ArrayList<Map<String, Object>>(uids.size());
+        for (String uid : uids) {
+            CachedCitation cached = cache.get(uid);
+            if (cached != null && cached.citation != null) {
+                citations.add(cached.citation);
+            }
+        }
+        return citations;
+    }
+
+    /**
+     * Refresh the citations of the uids in the background.
+     *
+     * @param uids
+     */
+    public void refresh(Collection<String> uids) {
+        if (!enabled) {
+            return;
+        }
+        final List<String> toLoad = new ArrayList<String>();
+        for (String uid : uids) {
+            if (refreshing.add(uid)) {
+                toLoad.add(uid);
+            }
+        }
+        if (toLoad.isEmpty()) {
+            return;
+        }
+        getRefreshExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    load(toLoad);
+                } finally {
+                    refreshing.removeAll(toLoad);
+                }
+            }
+        });
+    }
+
+    /**
+     * Request citations from the citation service, in batches of up to batchSize uids. Uids without a citation
+     * are cached as such, so they are not requested for every download.
+     *
+     * @param uids
+     */
+    protected void load(List<String> uids) {
+        for (int i = 0; i < uids.size(); i += batchSize) {
+            List<String> batch = uids.subList(i, Math.min(uids.size(), i + batchSize));
+            try {
+                List<Map<String, Object>> entities = restTemplate.postForObject(citationServiceUrl, batch, List.class);
+                long loaded = System.currentTimeMillis();
+                Set<String> found = new HashSet<String>();
+                if (entities != null) {
+                    for (Map<String, Object> record : entities) {
+                        if (record != null && record.get("uid") != null) {
+                            String uid = record.get("uid").toString();
+                            cache.put(uid, new CachedCitation(record, loaded));
+                            found.add(uid);
+                        }
+                    }
+                }
+                for (String uid : batch) {
+                    if (!found.contains(uid)) {
+                        cache.put(uid, new CachedCitation(null, loaded));
+                    }
+                }
+            } catch (Exception e) {
+                // keep using any older citations for these uids
+                logger.error("Unable to get citations for " + batch.size() + " uids from " + citationServiceUrl + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private ExecutorService getRefreshExecutor() {
+        ExecutorService nextExecutor = refreshExecutor;
+        if (nextExecutor == null) {
+            synchronized (this) {
+                nextExecutor = refreshExecutor;
+                if (nextExecutor == null) {
+                    nextExecutor = refreshExecutor = Executors.newSingleThreadExecutor(
+                            new ThreadFactoryBuilder().setNameFormat("biocache-citation-refresh-%d")
+                                    .setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+                }
+            }
+        }
+        return nextExecutor;
+    }
+
+    private static class CachedCitation {
+        /** null when the citation service has no citation for the uid */
+        final Map<String, Object> citation;
+        final long loaded;
+
+        CachedCitation(Map<String, Object> citation, long loaded) {
+            this.citation = citation;
+            this.loaded = loaded;
+        }
+    }
+}
@@ -22,6 +22,7 @@ import org.springframework.web.client.RestOperations;
 
 import javax.inject.Inject;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 
@@ -59,6 +60,9 @@ public class CollectionsCache {
     /** Spring injected RestTemplate object */
     @Inject
     private RestOperations restTemplate; // NB MappingJacksonHttpMessageConverter() injected by Spring
+    /** Citations of the collectory entities, used in downloads */
+    @Inject
+    private CitationCache citationCache;
     /** Log4J logger */
     private final static Logger logger = Logger.getLogger(CollectionsCache.class);
 
@@ -109,6 +113,16 @@ public class CollectionsCache {
             this.tempDataResources = getCodesMap(ResourceType.TEMP_DATA_RESOURCE, null);
             this.dataHubs = getCodesMap(ResourceType.DATA_HUB, data_hub_uid);
             this.dataResources.putAll(tempDataResources);
+
+            // warm the download citations of the entities in the background
+            if (citationCache != null) {
+                List<String> uids = new ArrayList<String>();
+                uids.addAll(institutions.keySet());
+                uids.addAll(collections.keySet());
+                uids.addAll(dataProviders.keySet());
+                uids.addAll(dataResources.keySet());
+                citationCache.refresh(uids);
+            }
         } else{
             logger.info("Collectory cache has been disabled");
         }
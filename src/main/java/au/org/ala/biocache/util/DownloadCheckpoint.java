@@ -0,0 +1,243 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records the sub-queries of an offline download that have been written, so that a download interrupted
+ * by a shutdown can continue from them after a restart.
+ * <p>
+ * The records of each sub-query are written to their own gzip compressed part file in a checkpoint directory
+ * beside the download. A part is only recorded as complete once all of its records are written. The parts are
+ * appended, in sub-query order, to the download output. A download that stopped early, other than for a
+ * shutdown, is written from the parts as they are, including the records of the parts that were not complete.
+ * <p>
+ * Methods are thread safe.
+ */
+public class DownloadCheckpoint {
+
+    private static final Logger logger = Logger.getLogger(DownloadCheckpoint.class);
+
+    private static final String CHECKPOINT_DIR = "checkpoint";
+    private static final String STATE_FILE = "checkpoint.json";
+
+    private static final ObjectMapper jsonMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final File dir;
+    private final State state;
+
+    private DownloadCheckpoint(File dir, State state) {
+        this.dir = dir;
+        this.state = state;
+    }
+
+    /**
+     * @param dd
+     * @return the checkpoint directory of an offline download, or null when the download has no file location
+     */
+    public static File getDirectory(DownloadDetailsDTO dd) {
+        if (dd.getFileLocation() == null) {
+            return null;
+        }
+        return new File(new File(dd.getFileLocation()).getParentFile(), CHECKPOINT_DIR);
+    }
+
+    /**
+     * Open the checkpoint of a download, continuing from the parts already complete when the download
+     * parameters are unchanged.
+     *
+     * @param dd
+     * @return the checkpoint, or null when the download has no file location
+     * @throws IOException
+     */
+    public static DownloadCheckpoint open(DownloadDetailsDTO dd) throws IOException {
+        File dir = getDirectory(dd);
+        if (dir == null) {
+            return null;
+        }
+        FileUtils.forceMkdir(dir);
+
+        State state = null;
+        File stateFile = new File(dir, STATE_FILE);
+        if (stateFile.exists()) {
+            try {
+                state = jsonMapper.readValue(stateFile, State.class);
+            } catch (IOException e) {
+                logger.error("Unable to read download checkpoint " + stateFile.getAbsolutePath(), e);
+            }
+        }
+        if (state == null || state.downloadParams == null || !state.downloadParams.equals(dd.getDownloadParams())) {
+            // nothing to continue from
+            FileUtils.cleanDirectory(dir);
+            state = new State();
+            state.downloadParams = dd.getDownloadParams();
+        } else {
+            // remove the parts that were being written when the download was interrupted
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    if (f.getName().endsWith(".tmp")) {
+                        FileUtils.deleteQuietly(f);
+                    }
+                }
+            }
+            // parts without a part file, for example written by an earlier version, are written again
+            Iterator<String> keys = state.parts.keySet().iterator();
+            while (keys.hasNext()) {
+                if (!getPartFile(dir, keys.next(), true).exists()) {
+                    keys.remove();
+                }
+            }
+            if (logger.isInfoEnabled() && !state.parts.isEmpty()) {
+                logger.info("Continuing download from " + state.parts.size() + " completed queries: " + dd);
+            }
+        }
+        return new DownloadCheckpoint(dir, state);
+    }
+
+    /**
+     * Delete the checkpoint of a download, once the download is complete.
+     *
+     * @param dd
+     */
+    public static void delete(DownloadDetailsDTO dd) {
+        File dir = getDirectory(dd);
+        if (dir != null) {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private static File getPartFile(File dir, String key, boolean complete) {
+        return new File(dir, "part-" + DigestUtils.md5Hex(key) + (complete ? ".csv.gz" : ".tmp"));
+    }
+
+    /**
+     * @param key the sub-query
+     * @return the completed part of the sub-query, or null when it is not complete
+     */
+    public synchronized Part getPart(String key) {
+        return state.parts.get(key);
+    }
+
+    /**
+     * Open a new part file for the records of a sub-query. The records are compressed, the stream must be
+     * closed to complete the file.
+     *
+     * @param key the sub-query
+     * @return the stream to write the records to
+     * @throws IOException
+     */
+    public OutputStream openPart(String key) throws IOException {
+        return new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(getPartFile(dir, key, false))), 65536);
+    }
+
+    /**
+     * Record that all of the records of a sub-query have been written to its part file, which must be closed.
+     *
+     * @param key the sub-query
+     * @param records the number of records written
+     * @param uids the record counts by uid
+     * @throws IOException
+     */
+    public synchronized void complete(String key, int records, Map<String, Integer> uids) throws IOException {
+        Files.move(getPartFile(dir, key, false).toPath(), getPartFile(dir, key, true).toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        Part part = new Part();
+        part.records = records;
+        part.uids = uids;
+        state.parts.put(key, part);
+
+        File stateFile = new File(dir, STATE_FILE);
+        File tmp = new File(dir, STATE_FILE + ".tmp");
+        jsonMapper.writeValue(tmp, state);
+        Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param keys
+     * @return true when all of the sub-queries are complete
+     */
+    public synchronized boolean isComplete(List<String> keys) {
+        return state.parts.keySet().containsAll(keys);
+    }
+
+    /**
+     * Append the records of the sub-queries to the output. Sub-queries that are not complete add the records
+     * written to their part file, if any.
+     *
+     * @param keys the sub-queries, in output order
+     * @param out
+     * @throws IOException
+     */
+    public void writeParts(List<String> keys, OutputStream out) throws IOException {
+        for (String key : keys) {
+            File file = getPartFile(dir, key, true);
+            if (file.exists()) {
+                copyPart(file, out);
+            } else {
+                file = getPartFile(dir, key, false);
+                if (file.exists()) {
+                    try {
+                        copyPart(file, out);
+                    } catch (EOFException e) {
+                        logger.warn("Incomplete download part file ended early: " + file.getAbsolutePath());
+                    }
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private void copyPart(File file, OutputStream out) throws IOException {
+        try (InputStream fis = new FileInputStream(file);
+             InputStream in = new GZIPInputStream(fis, 65536)) {
+            IOUtils.copyLarge(in, out);
+        }
+    }
+
+    /**
+     * The persisted checkpoint state.
+     */
+    public static class State {
+        public String downloadParams;
+        public Map<String, Part> parts = new HashMap<String, Part>();
+    }
+
+    /**
+     * A completed sub-query.
+     */
+    public static class Part {
+        public int records;
+        public Map<String, Integer> uids = new HashMap<String, Integer>();
+    }
+}
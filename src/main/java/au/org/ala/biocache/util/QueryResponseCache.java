@@ -0,0 +1,231 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches SOLR query responses by their query parameters.
+ * <p>
+ * The cache is limited by the estimated size of the responses, and the least recently used responses are
+ * removed first. All responses are removed when the index version changes. Hits and misses are counted for
+ * each endpoint.
+ */
+public class QueryResponseCache {
+
+    private final long maxBytes;
+
+    private final Object lock = new Object();
+    private final LinkedHashMap<String, CachedResponse> cache = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+    private long bytes = 0;
+    private long indexVersion = -1;
+
+    private final ConcurrentMap<String, AtomicLong[]> stats = new ConcurrentHashMap<String, AtomicLong[]>();
+
+    /**
+     * @param maxBytes maximum estimated size of all cached responses
+     */
+    public QueryResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param endpoint     name the hit or miss is counted against
+     * @param key          see {@link #getKey(SolrParams)}
+     * @param indexVersion current index version
+     * @return the cached response or null
+     */
+    public QueryResponse get(String endpoint, String key, long indexVersion) {
+        CachedResponse cached;
+        synchronized (lock) {
+            checkIndexVersion(indexVersion);
+            cached = cache.get(key);
+        }
+        getStats(endpoint)[cached != null ? 0 : 1].incrementAndGet();
+        return cached == null ? null : cached.response;
+    }
+
+    /**
+     * Cache a response. Responses larger than a tenth of the cache are not cached.
+     *
+     * @param key
+     * @param response
+     * @param indexVersion index version at the time of the query
+     */
+    public void put(String key, QueryResponse response, long indexVersion) {
+        long size = estimateSize(key, 0) + estimateSize(response.getResponse(), 0);
+        if (size > maxBytes / 10) {
+            return;
+        }
+        synchronized (lock) {
+            if (indexVersion > this.indexVersion) {
+                checkIndexVersion(indexVersion);
+            }
+            if (this.indexVersion != indexVersion) {
+                //the response is from an older index
+                return;
+            }
+            CachedResponse previous = cache.put(key, new CachedResponse(response, size));
+            if (previous != null) {
+                bytes -= previous.size;
+            }
+            bytes += size;
+
+            Iterator<CachedResponse> it = cache.values().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                bytes -= it.next().size;
+                it.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (lock) {
+            cache.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * @return number of entries and estimated bytes cached, and hits, misses and hit ratio by endpoint
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        synchronized (lock) {
+            result.put("entries", cache.size());
+            result.put("bytes", bytes);
+            result.put("maxBytes", maxBytes);
+            result.put("indexVersion", indexVersion);
+        }
+        Map<String, Object> endpoints = new TreeMap<String, Object>();
+        for (Map.Entry<String, AtomicLong[]> entry : stats.entrySet()) {
+            long hits = entry.getValue()[0].get();
+            long misses = entry.getValue()[1].get();
+            Map<String, Object> endpoint = new LinkedHashMap<String, Object>();
+            endpoint.put("hits", hits);
+            endpoint.put("misses", misses);
+            endpoint.put("hitRatio", hits + misses > 0 ? hits / (double) (hits + misses) : 0);
+            endpoints.put(entry.getKey(), endpoint);
+        }
+        result.put("endpoints", endpoints);
+        return result;
+    }
+
+    /**
+     * Normalised key for SOLR query parameters. Parameter names are sorted, and filter queries are sorted
+     * because their order does not change the response.
+     *
+     * @param params
+     * @return
+     */
+    public static String getKey(SolrParams params) {
+        List<String> names = new ArrayList<String>();
+        Iterator<String> it = params.getParameterNamesIterator();
+        while (it.hasNext()) {
+            names.add(it.next());
+        }
+        Collections.sort(names);
+
+        StringBuilder sb = new StringBuilder();
+        for (String name : names) {
+            String[] values = params.getParams(name);
+            if (values == null) {
+                continue;
+            }
+            if ("fq".equals(name)) {
+                values = values.clone();
+                Arrays.sort(values);
+            }
+            for (String value : values) {
+                //length prefix so that values containing the separator can not be confused
+                sb.append(name).append('=').append(value.length()).append(':').append(value).append('&');
+            }
+        }
+        return sb.toString();
+    }
+
+    private void checkIndexVersion(long indexVersion) {
+        if (indexVersion != this.indexVersion) {
+            cache.clear();
+            bytes = 0;
+            this.indexVersion = indexVersion;
+        }
+    }
+
+    private AtomicLong[] getStats(String endpoint) {
+        AtomicLong[] counts = stats.get(endpoint);
+        if (counts == null) {
+            AtomicLong[] newCounts = new AtomicLong[]{new AtomicLong(), new AtomicLong()};
+            counts = stats.putIfAbsent(endpoint, newCounts);
+            if (counts == null) {
+                counts = newCounts;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Rough estimate of the memory used by a response value.
+     */
+    static long estimateSize(Object o, int depth) {
+        if (o == null) {
+            return 8;
+        }
+        if (o instanceof String) {
+            return 40 + 2 * ((String) o).length();
+        }
+        if (depth > 32) {
+            return 32;
+        }
+        long size = 32;
+        if (o instanceof NamedList) {
+            NamedList list = (NamedList) o;
+            for (int i = 0; i < list.size(); i++) {
+                size += 16 + estimateSize(list.getName(i), depth + 1) + estimateSize(list.getVal(i), depth + 1);
+            }
+        } else if (o instanceof Map) {
+            for (Object e : ((Map) o).entrySet()) {
+                Map.Entry entry = (Map.Entry) e;
+                size += 16 + estimateSize(entry.getKey(), depth + 1) + estimateSize(entry.getValue(), depth + 1);
+            }
+        } else if (o instanceof Collection) {
+            for (Object item : (Collection) o) {
+                size += 8 + estimateSize(item, depth + 1);
+            }
+        } else if (o instanceof Object[]) {
+            for (Object item : (Object[]) o) {
+                size += 8 + estimateSize(item, depth + 1);
+            }
+        }
+        return size;
+    }
+
+    private static class CachedResponse {
+        final QueryResponse response;
+        final long size;
+
+        CachedResponse(QueryResponse response, long size) {
+            this.response = response;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the most recent queue times (ms) and reports percentiles over them.
+ */
+public class QueueTimeSamples {
+
+    private final long[] samples;
+    private int next = 0;
+    private int size = 0;
+    private long total = 0;
+
+    /**
+     * @param capacity the number of recent samples to keep
+     */
+    public QueueTimeSamples(int capacity) {
+        samples = new long[Math.max(1, capacity)];
+    }
+
+    public synchronized void add(long queueTimeMs) {
+        samples[next] = queueTimeMs;
+        next = (next + 1) % samples.length;
+        if (size < samples.length) {
+            size++;
+        }
+        total++;
+    }
+
+    /**
+     * @return count (all time), and the 50th, 90th, 99th percentile and maximum of the recent samples
+     */
+    public Map<String, Long> getPercentiles() {
+        long[] sorted;
+        long count;
+        synchronized (this) {
+            sorted = Arrays.copyOf(samples, size);
+            count = total;
+        }
+        Arrays.sort(sorted);
+
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        result.put("count", count);
+        if (sorted.length > 0) {
+            result.put("p50", percentile(sorted, 50));
+            result.put("p90", percentile(sorted, 90));
+            result.put("p99", percentile(sorted, 99));
+            result.put("max", sorted[sorted.length - 1]);
+        }
+        return result;
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        int i = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+    }
+}
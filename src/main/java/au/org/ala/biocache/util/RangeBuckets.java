@@ -0,0 +1,148 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Ranges of a numeric or date field from legend cutpoints.
+ * <p>
+ * Cutpoints are pairs of inclusive lower and upper bounds, as used in the colour mode of WMS layers, e.g.
+ * year,1900,1949,1950,1999. A bound of * is open. Field values are assigned to every range that contains
+ * them, the same as a filter query on each range. As in SOLR, float values are compared with the bounds parsed
+ * as floats.
+ */
+public class RangeBuckets {
+
+    private final String field;
+    private final String[] cutpoints;
+    private final Comparable[] lower;
+    private final Comparable[] upper;
+    /** bounds for float values */
+    private final Comparable[] floatLower;
+    private final Comparable[] floatUpper;
+
+    /**
+     * @param field
+     * @param cutpoints pairs of lower and upper bounds
+     * @throws IllegalArgumentException when there is an odd number of cutpoints or a bound is not a number or date
+     */
+    public RangeBuckets(String field, String[] cutpoints) {
+        if (cutpoints == null || cutpoints.length % 2 != 0) {
+            throw new IllegalArgumentException("cutpoints must be pairs of lower and upper bounds");
+        }
+        this.field = field;
+        this.cutpoints = cutpoints;
+        lower = new Comparable[cutpoints.length / 2];
+        upper = new Comparable[cutpoints.length / 2];
+        floatLower = new Comparable[cutpoints.length / 2];
+        floatUpper = new Comparable[cutpoints.length / 2];
+        for (int i = 0; i < lower.length; i++) {
+            lower[i] = parseBound(cutpoints[2 * i], false);
+            upper[i] = parseBound(cutpoints[2 * i + 1], false);
+            floatLower[i] = parseBound(cutpoints[2 * i], true);
+            floatUpper[i] = parseBound(cutpoints[2 * i + 1], true);
+        }
+    }
+
+    /**
+     * @return number of ranges
+     */
+    public int size() {
+        return lower.length;
+    }
+
+    /**
+     * @param range
+     * @return filter query for the range, e.g. year:[1900 TO 1949]
+     */
+    public String getFq(int range) {
+        return field + ":[" + cutpoints[2 * range] + " TO " + cutpoints[2 * range + 1] + "]";
+    }
+
+    /**
+     * @return filter query for records without a value
+     */
+    public String getMissingFq() {
+        return "-" + field + ":[* TO *]";
+    }
+
+    /**
+     * @param value a Number, Date or String field value
+     * @return the ranges that contain the value, in order
+     */
+    public List<Integer> getRanges(Object value) {
+        List<Integer> ranges = new ArrayList<Integer>(1);
+        Comparable v = toComparable(value);
+        if (v == null) {
+            return ranges;
+        }
+        Comparable[] lower = v instanceof Float ? floatLower : this.lower;
+        Comparable[] upper = v instanceof Float ? floatUpper : this.upper;
+        for (int i = 0; i < lower.length; i++) {
+            if (compare(lower[i], v) <= 0 && compare(v, upper[i]) <= 0) {
+                ranges.add(i);
+            }
+        }
+        return ranges;
+    }
+
+    private static int compare(Comparable a, Comparable b) {
+        //null is an open bound
+        if (a == null || b == null) {
+            return 0;
+        }
+        if (a.getClass() != b.getClass()) {
+            throw new IllegalArgumentException("Can not compare " + a + " with " + b);
+        }
+        return a.compareTo(b);
+    }
+
+    private static Comparable toComparable(Object value) {
+        if (value instanceof Float) {
+            return (Float) value;
+        } else if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof Date) {
+            return (Date) value;
+        } else if (value != null) {
+            return parseBound(value.toString(), false);
+        }
+        return null;
+    }
+
+    private static Comparable parseBound(String bound, boolean asFloat) {
+        bound = bound.trim();
+        if ("*".equals(bound)) {
+            return null;
+        }
+        try {
+            return asFloat ? (Comparable) Float.parseFloat(bound) : (Comparable) Double.parseDouble(bound);
+        } catch (NumberFormatException e) {
+            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+            sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+            try {
+                return sdf.parse(bound);
+            } catch (ParseException pe) {
+                throw new IllegalArgumentException("Range bound is not a number or date: " + bound);
+            }
+        }
+    }
+}
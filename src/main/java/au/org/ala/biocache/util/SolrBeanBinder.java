@@ -0,0 +1,313 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import org.apache.solr.client.solrj.beans.BindingException;
+import org.apache.solr.client.solrj.beans.Field;
+import org.apache.solr.common.SolrDocument;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Binds SOLR documents to beans with {@link Field} annotations, such as OccurrenceIndex.
+ * <p>
+ * Gives the same beans as SolrJ's DocumentObjectBinder. The annotated fields and setters of a class are
+ * found once and each SOLR field name is resolved to its bean properties the first time it is seen, so
+ * binding a document only visits the fields it contains (the fields in fl) instead of every annotated
+ * property of the class.
+ * <p>
+ * Thread safe. Use {@link #getBinder(Class)} to get the shared binder for a class.
+ */
+public class SolrBeanBinder<T> {
+
+    private static final ConcurrentMap<Class, SolrBeanBinder> binders = new ConcurrentHashMap<Class, SolrBeanBinder>();
+
+    private final Class<T> type;
+
+    /** properties with a field name */
+    private final Map<String, Property> properties = new HashMap<String, Property>();
+
+    /** properties with a wildcard field name, e.g. *_s */
+    private final List<Property> dynamicProperties = new ArrayList<Property>();
+
+    /** SOLR field name to the properties it is bound to */
+    private final ConcurrentMap<String, Property[]> resolved = new ConcurrentHashMap<String, Property[]>();
+
+    /**
+     * @param type bean class
+     * @return the shared binder for the class
+     */
+    public static <T> SolrBeanBinder<T> getBinder(Class<T> type) {
+        SolrBeanBinder<T> binder = binders.get(type);
+        if (binder == null) {
+            binder = new SolrBeanBinder<T>(type);
+            SolrBeanBinder<T> existing = binders.putIfAbsent(type, binder);
+            if (existing != null) {
+                binder = existing;
+            }
+        }
+        return binder;
+    }
+
+    private SolrBeanBinder(Class<T> type) {
+        this.type = type;
+
+        List<Class> classes = new ArrayList<Class>();
+        for (Class c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            classes.add(0, c);
+        }
+        //superclass properties first, so that a subclass property with the same name replaces it
+        for (Class c : classes) {
+            for (java.lang.reflect.Field field : c.getDeclaredFields()) {
+                Field annotation = field.getAnnotation(Field.class);
+                if (annotation != null && !Modifier.isStatic(field.getModifiers())) {
+                    String name = Field.DEFAULT.equals(annotation.value()) ? field.getName() : annotation.value();
+                    add(new Property(name, field, null, field.getType(), field.getGenericType()));
+                }
+            }
+            for (Method method : c.getDeclaredMethods()) {
+                Field annotation = method.getAnnotation(Field.class);
+                if (annotation != null && method.getParameterTypes().length == 1) {
+                    String name = annotation.value();
+                    if (Field.DEFAULT.equals(name)) {
+                        name = method.getName();
+                        if (name.startsWith("set") && name.length() > 3) {
+                            name = Character.toLowerCase(name.charAt(3)) + name.substring(4);
+                        }
+                    }
+                    add(new Property(name, null, method, method.getParameterTypes()[0], method.getGenericParameterTypes()[0]));
+                }
+            }
+        }
+    }
+
+    private void add(Property property) {
+        if (property.pattern != null) {
+            dynamicProperties.add(property);
+        } else {
+            properties.put(property.name, property);
+        }
+    }
+
+    /**
+     * @param docs SOLR documents, may be null
+     * @return a bean for each document
+     */
+    public List<T> getBeans(Collection<SolrDocument> docs) {
+        if (docs == null) {
+            return new ArrayList<T>();
+        }
+        List<T> beans = new ArrayList<T>(docs.size());
+        for (SolrDocument doc : docs) {
+            beans.add(getBean(doc));
+        }
+        return beans;
+    }
+
+    /**
+     * @param doc SOLR document
+     * @return a new bean with the values of the document
+     */
+    public T getBean(SolrDocument doc) {
+        T bean;
+        try {
+            bean = type.newInstance();
+        } catch (Exception e) {
+            throw new BindingException("Could not instantiate object of " + type, e);
+        }
+
+        Map<Property, Map<String, Object>> dynamicValues = null;
+        for (Map.Entry<String, Object> entry : doc.entrySet()) {
+            Object value = entry.getValue();
+            if (value == null) {
+                continue;
+            }
+            for (Property property : resolve(entry.getKey())) {
+                if (property.pattern == null) {
+                    property.inject(bean, value);
+                } else {
+                    if (dynamicValues == null) {
+                        dynamicValues = new HashMap<Property, Map<String, Object>>();
+                    }
+                    Map<String, Object> values = dynamicValues.get(property);
+                    if (values == null) {
+                        values = new HashMap<String, Object>();
+                        dynamicValues.put(property, values);
+                    }
+                    values.put(entry.getKey(), value);
+                }
+            }
+        }
+
+        if (dynamicValues != null) {
+            for (Map.Entry<Property, Map<String, Object>> entry : dynamicValues.entrySet()) {
+                entry.getKey().injectDynamic(bean, entry.getValue());
+            }
+        }
+        return bean;
+    }
+
+    /**
+     * @param name SOLR field name
+     * @return the properties the field is bound to
+     */
+    private Property[] resolve(String name) {
+        Property[] result = resolved.get(name);
+        if (result == null) {
+            List<Property> list = new ArrayList<Property>();
+            Property property = properties.get(name);
+            if (property != null) {
+                list.add(property);
+            }
+            //wildcard properties also get fields with their own property, e.g. photographer_s is also in *_s
+            for (Property dynamic : dynamicProperties) {
+                if (dynamic.pattern.matcher(name).find()) {
+                    list.add(dynamic);
+                }
+            }
+            result = list.toArray(new Property[list.size()]);
+            resolved.putIfAbsent(name, result);
+        }
+        return result;
+    }
+
+    private static class Property {
+        final String name;
+        final java.lang.reflect.Field field;
+        final Method setter;
+        final Pattern pattern;
+        final boolean isMap;
+        final boolean isArray;
+        final boolean isList;
+        /** array, list or map value type */
+        final Class valueType;
+
+        Property(String name, java.lang.reflect.Field field, Method setter, Class type, java.lang.reflect.Type genericType) {
+            this.name = name;
+            this.field = field;
+            this.setter = setter;
+            this.pattern = name.contains("*") ? Pattern.compile("^" + name.replace("*", ".*") + "$") : null;
+
+            AccessibleObject accessible = field != null ? field : setter;
+            accessible.setAccessible(true);
+
+            isMap = Map.class.isAssignableFrom(type);
+            Class componentType = type;
+            if (isMap) {
+                componentType = typeArgument(genericType, 1);
+                if (componentType == null) {
+                    componentType = Object.class;
+                }
+                isArray = componentType.isArray();
+                isList = Collection.class.isAssignableFrom(componentType);
+                if (isArray) {
+                    componentType = componentType.getComponentType();
+                }
+            } else if (type.isArray()) {
+                isArray = true;
+                isList = false;
+                componentType = type.getComponentType();
+            } else if (Collection.class.isAssignableFrom(type)) {
+                isArray = false;
+                isList = true;
+                componentType = typeArgument(genericType, 0);
+            } else {
+                isArray = false;
+                isList = false;
+            }
+            valueType = componentType;
+        }
+
+        private static Class typeArgument(java.lang.reflect.Type genericType, int index) {
+            if (genericType instanceof java.lang.reflect.ParameterizedType) {
+                java.lang.reflect.Type[] args = ((java.lang.reflect.ParameterizedType) genericType).getActualTypeArguments();
+                if (args.length > index) {
+                    if (args[index] instanceof Class) {
+                        return (Class) args[index];
+                    } else if (args[index] instanceof java.lang.reflect.ParameterizedType) {
+                        return (Class) ((java.lang.reflect.ParameterizedType) args[index]).getRawType();
+                    }
+                }
+            }
+            return null;
+        }
+
+        void inject(Object bean, Object value) {
+            if (isMap) {
+                //a map is only bound to a wildcard field name
+                return;
+            }
+            if (isArray) {
+                if (!value.getClass().isArray()) {
+                    List list = value instanceof List ? (List) value : Collections.singletonList(value);
+                    value = list.toArray((Object[]) Array.newInstance(valueType, list.size()));
+                }
+            } else if (isList) {
+                if (!(value instanceof List)) {
+                    List list = new ArrayList();
+                    list.add(value);
+                    value = list;
+                }
+            }
+            set(bean, value);
+        }
+
+        void injectDynamic(Object bean, Map<String, Object> values) {
+            if (isMap) {
+                if (isArray || isList) {
+                    for (Map.Entry<String, Object> entry : values.entrySet()) {
+                        Object value = entry.getValue();
+                        if (isArray && !value.getClass().isArray()) {
+                            List list = value instanceof List ? (List) value : Collections.singletonList(value);
+                            entry.setValue(list.toArray((Object[]) Array.newInstance(valueType, list.size())));
+                        } else if (isList && !(value instanceof List)) {
+                            List list = new ArrayList();
+                            list.add(value);
+                            entry.setValue(list);
+                        }
+                    }
+                }
+                set(bean, values);
+            } else {
+                //wildcard field name bound to an array or list
+                List all = new ArrayList(values.values());
+                if (isArray) {
+                    set(bean, all.toArray((Object[]) Array.newInstance(valueType, all.size())));
+                } else {
+                    set(bean, all);
+                }
+            }
+        }
+
+        private void set(Object bean, Object value) {
+            try {
+                if (field != null) {
+                    field.set(bean, value);
+                } else {
+                    setter.invoke(bean, value);
+                }
+            } catch (Exception e) {
+                throw new BindingException("Exception while setting value : " + value + " on " + (field != null ? field : setter), e);
+            }
+        }
+    }
+}
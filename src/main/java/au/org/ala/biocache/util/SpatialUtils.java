@@ -1,13 +1,19 @@
 package au.org.ala.biocache.util;
 
-import com.vividsolutions.jts.geom.Envelope;
-import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.*;
 import com.vividsolutions.jts.io.WKTReader;
+import com.vividsolutions.jts.operation.union.CascadedPolygonUnion;
 import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.log4j.Logger;
 import org.geotools.geometry.jts.JTS;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Supplies spatial utilities that can be used for the geospatial seaches
  *
@@ -19,6 +25,14 @@ public class SpatialUtils {
 
     private static final Geometry THE_WORLD=JTS.toGeometry(new Envelope(-180.0,180.0, -90.0, 90.0));
     private static final double TO_DEG = Math.toDegrees(1.0);
+
+    /** Maximum total length (characters) of the cached WKT queries */
+    private static final long WKT_QUERY_CACHE_MAX_CHARS = 16 * 1024 * 1024;
+
+    /** WKT queries by spatial field, negation, simplification tolerance and a hash of the WKT */
+    private static final LinkedHashMap<String, String> wktQueryCache = new LinkedHashMap<String, String>(16, 0.75f, true);
+    private static long wktQueryCacheChars = 0;
+    private static final Object wktQueryCacheLock = new Object();
     /**
     * The Authalic mean radius (A<subscript>r</subscript>) of the earth
     * [6371.0072 km] (see <a
@@ -203,41 +217,136 @@ public class SpatialUtils {
      * @return
      */
     public static String getWKTQuery(String spatialField,String wkt, boolean negated){
-        StringBuilder sb = new StringBuilder();
+        return getWKTQuery(spatialField, wkt, negated, 0);
+    }
+
+    /**
+     * Build up a WKT query, once for each WKT.
+     * <p/>
+     * The WKT is parsed and invalid polygons are repaired. The polygons of a geometry collection are unioned
+     * into one geometry, other geometry collections are converted into multiple queries using boolean logic.
+     * The geometry is simplified when a tolerance is given.
+     *
+     * @param spatialField The SOLR field that is being used to search WKT
+     * @param wkt The source WKT value
+     * @param negated Whether or not the query should be negated this effects logic operator used
+     * @param tolerance Distance tolerance (decimal degrees) used to simplify the geometry, or 0 to not simplify
+     * @return
+     */
+    public static String getWKTQuery(String spatialField, String wkt, boolean negated, double tolerance){
+        String key = spatialField + (negated ? " -" : " ") + tolerance + " " + DigestUtils.sha1Hex(wkt);
+        String query;
+        synchronized (wktQueryCacheLock) {
+            query = wktQueryCache.get(key);
+        }
+        if (query == null) {
+            query = buildWKTQuery(spatialField, wkt, negated, tolerance);
+            cacheWKTQuery(key, query);
+        }
+        return query;
+    }
+
+    /**
+     * Cache a WKT query, removing the least recently used queries when the cache is full. Queries longer than a
+     * tenth of the cache are not cached.
+     */
+    private static void cacheWKTQuery(String key, String query) {
+        long chars = key.length() + query.length();
+        if (chars > WKT_QUERY_CACHE_MAX_CHARS / 10) {
+            return;
+        }
+        synchronized (wktQueryCacheLock) {
+            String previous = wktQueryCache.put(key, query);
+            wktQueryCacheChars += chars - (previous != null ? key.length() + previous.length() : 0);
+            Iterator<Map.Entry<String, String>> it = wktQueryCache.entrySet().iterator();
+            while (wktQueryCacheChars > WKT_QUERY_CACHE_MAX_CHARS && it.hasNext()) {
+                Map.Entry<String, String> eldest = it.next();
+                wktQueryCacheChars -= eldest.getKey().length() + eldest.getValue().length();
+                it.remove();
+            }
+        }
+    }
+
+    private static String buildWKTQuery(String spatialField, String wkt, boolean negated, double tolerance){
         String operation = negated ? " AND ": " OR ";
         String field = negated ? "-" +spatialField:spatialField;
-        if(wkt.startsWith("GEOMETRYCOLLECTION")){
-            //the lucene JTS WKT does not support GEOMETRYCOLLECTION http://wiki.apache.org/solr/SolrAdaptersForLuceneSpatial4 so we will add a bunch of "OR"ed intersections
-            try{
-                WKTReader r = new WKTReader();
-                GeometryCollection gc = (GeometryCollection)r.read(wkt);
 
-                //now get the individual components
-                sb.append("(");
-                for(int i=0;i<gc.getNumGeometries();i++){
-                    Geometry g = gc.getGeometryN(i);
-                    if(i>0){
-                        sb.append(operation);
-                    }
-                    sb.append(field).append(":\"Intersects(");
-                    sb.append(g.toText());
-                    sb.append(")\"");
+        List<String> parts = new ArrayList<String>();
+        try {
+            Geometry g = new WKTReader().read(wkt);
+            Geometry prepared = prepareGeometry(g, tolerance);
+            if (prepared == g) {
+                //unchanged
+                parts.add(wkt);
+            } else if ("GeometryCollection".equals(prepared.getGeometryType())) {
+                //the lucene JTS WKT does not support GEOMETRYCOLLECTION http://wiki.apache.org/solr/SolrAdaptersForLuceneSpatial4 so we will add a bunch of "OR"ed intersections
+                for (int i = 0; i < prepared.getNumGeometries(); i++) {
+                    parts.add(prepared.getGeometryN(i).toText());
                 }
-                sb.append(")");
+            } else {
+                parts.add(prepared.toText());
+            }
+        } catch (Exception e) {
+            logger.error("Unable to prepare WKT for a spatial query, using it as it is: " + e.getMessage());
+            parts.clear();
+            parts.add(wkt);
+        }
 
-            } catch(Exception e){
-                //log the error
-                e.printStackTrace();
+        StringBuilder sb = new StringBuilder();
+        if (parts.size() > 1) {
+            sb.append("(");
+        }
+        for (int i = 0; i < parts.size(); i++) {
+            if (i > 0) {
+                sb.append(operation);
             }
-        } else {
             sb.append(field).append(":\"Intersects(");
-            sb.append(wkt);
+            sb.append(parts.get(i));
             sb.append(")\"");
-
+        }
+        if (parts.size() > 1) {
+            sb.append(")");
         }
         return sb.toString();
     }
 
+    /**
+     * Repair invalid polygons, union the polygons of a geometry collection and simplify.
+     *
+     * @param g
+     * @param tolerance Distance tolerance used to simplify, or 0 to not simplify
+     * @return the geometry, or a new geometry when it was changed
+     */
+    private static Geometry prepareGeometry(Geometry g, double tolerance) {
+        if ("GeometryCollection".equals(g.getGeometryType())) {
+            boolean polygonal = true;
+            List<Geometry> members = new ArrayList<Geometry>();
+            List<Geometry> polygons = new ArrayList<Geometry>();
+            for (int i = 0; i < g.getNumGeometries(); i++) {
+                Geometry member = prepareGeometry(g.getGeometryN(i), tolerance);
+                polygonal &= member instanceof Polygonal;
+                members.add(member);
+                for (int j = 0; j < member.getNumGeometries(); j++) {
+                    polygons.add(member.getGeometryN(j));
+                }
+            }
+            if (polygonal && !polygons.isEmpty()) {
+                return CascadedPolygonUnion.union(polygons);
+            }
+            return g.getFactory().buildGeometry(members);
+        }
+
+        Geometry prepared = g;
+        if (prepared instanceof Polygonal && !prepared.isValid()) {
+            //a zero width buffer repairs self intersections
+            prepared = prepared.buffer(0);
+        }
+        if (tolerance > 0) {
+            prepared = TopologyPreservingSimplifier.simplify(prepared, tolerance);
+        }
+        return prepared;
+    }
+
     /**
      * Attempts to simplify WKT until the number of points is < maxPoints.
      * <p/>
@@ -259,8 +368,9 @@ public class SpatialUtils {
             }
 
             double distance = 0.0001;
-            while (maxPoints > 0 && g.getNumPoints() > maxPoints && distance < 10) {
-                Geometry gsimplified = TopologyPreservingSimplifier.simplify(g, distance);
+            Geometry gsimplified = g;
+            while (maxPoints > 0 && gsimplified.getNumPoints() > maxPoints && distance < 10) {
+                gsimplified = TopologyPreservingSimplifier.simplify(g, distance);
                 distance *= 2;
 
                 smallerGeometry = gsimplified;
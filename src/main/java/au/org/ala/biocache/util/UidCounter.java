@@ -0,0 +1,109 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts record uids (institution, collection, data provider and data resource) for a single
+ * download thread.
+ * <p>
+ * Each distinct uid is given an ordinal the first time it is seen and counted with a primitive
+ * counter. The counts are added to the shared download statistics once, with {@link #mergeInto},
+ * instead of contending on the shared map for every record.
+ * <p>
+ * Not thread safe. Use one instance per thread.
+ */
+public class UidCounter {
+
+    private final Map<String, Integer> ordinals = new HashMap<String, Integer>();
+    private String[] uids = new String[16];
+    private int[] counts = new int[16];
+
+    /**
+     * Increment the count for a uid. Null uids are ignored.
+     *
+     * @param uid
+     */
+    public void increment(Object uid) {
+        if (uid == null) {
+            return;
+        }
+        add(uid.toString(), 1);
+    }
+
+    /**
+     * Add to the count for a uid.
+     *
+     * @param uid
+     * @param count
+     */
+    public void add(String uid, int count) {
+        Integer ordinal = ordinals.get(uid);
+        if (ordinal == null) {
+            ordinal = ordinals.size();
+            if (ordinal == counts.length) {
+                uids = Arrays.copyOf(uids, ordinal * 2);
+                counts = Arrays.copyOf(counts, ordinal * 2);
+            }
+            uids[ordinal] = uid;
+            ordinals.put(uid, ordinal);
+        }
+        counts[ordinal] += count;
+    }
+
+    /**
+     * @param uid
+     * @return the current count for the uid
+     */
+    public int getCount(String uid) {
+        Integer ordinal = ordinals.get(uid);
+        return ordinal == null ? 0 : counts[ordinal];
+    }
+
+    /**
+     * @return a copy of the current counts
+     */
+    public Map<String, Integer> getCounts() {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        for (int i = 0; i < ordinals.size(); i++) {
+            if (counts[i] > 0) {
+                result.put(uids[i], counts[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add the counts to the shared uid statistics and reset this counter.
+     *
+     * @param uidStats
+     */
+    public void mergeInto(ConcurrentMap<String, AtomicInteger> uidStats) {
+        for (int i = 0; i < ordinals.size(); i++) {
+            if (counts[i] > 0) {
+                AtomicInteger existing = uidStats.putIfAbsent(uids[i], new AtomicInteger(counts[i]));
+                if (existing != null) {
+                    existing.addAndGet(counts[i]);
+                }
+                counts[i] = 0;
+            }
+        }
+    }
+}
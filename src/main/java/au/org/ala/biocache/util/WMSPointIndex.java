@@ -0,0 +1,262 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import java.util.List;
+
+/**
+ * A grid index over the points of a {@link WMSTile}, to find the points under a map click without a SOLR query.
+ * <p>
+ * The points are referenced by their position in the tile arrays, they are not copied. The grid covers the extent
+ * of the points with about 4 points per cell.
+ */
+public class WMSPointIndex {
+
+    private final List<float[]> points;
+    private final List<int[]> counts;
+
+    /** position of the first point of each tile array */
+    private final int[] arrayStarts;
+
+    private final double minX;
+    private final double minY;
+    private final double cellWidth;
+    private final double cellHeight;
+    private final int columns;
+    private final int rows;
+
+    /** points of cell i are pointsByCell[cellStarts[i]] to pointsByCell[cellStarts[i + 1] - 1] */
+    private final int[] cellStarts;
+    private final int[] pointsByCell;
+
+    /**
+     * @param points tile points, each array is longitude,latitude pairs
+     * @param counts occurrence count of each point, or null when the tile has no counts
+     */
+    public WMSPointIndex(List<float[]> points, List<int[]> counts) {
+        this.points = points;
+        this.counts = counts;
+
+        arrayStarts = new int[points.size() + 1];
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int a = 0; a < points.size(); a++) {
+            float[] ps = points.get(a);
+            int n = ps == null ? 0 : ps.length / 2;
+            arrayStarts[a + 1] = arrayStarts[a] + n;
+            for (int i = 0; i < n; i++) {
+                if (isValid(a, i)) {
+                    minX = Math.min(minX, ps[2 * i]);
+                    maxX = Math.max(maxX, ps[2 * i]);
+                    minY = Math.min(minY, ps[2 * i + 1]);
+                    maxY = Math.max(maxY, ps[2 * i + 1]);
+                }
+            }
+        }
+        int total = arrayStarts[points.size()];
+
+        if (minX > maxX) {
+            //no valid points
+            minX = minY = maxX = maxY = 0;
+        }
+        int side = (int) Math.max(1, Math.min(4096, Math.sqrt(total / 4.0)));
+        this.minX = minX;
+        this.minY = minY;
+        columns = side;
+        rows = side;
+        cellWidth = maxX > minX ? (maxX - minX) / columns : 1;
+        cellHeight = maxY > minY ? (maxY - minY) / rows : 1;
+
+        //count the points in each cell, then place them
+        cellStarts = new int[columns * rows + 1];
+        for (int a = 0; a < points.size(); a++) {
+            for (int i = arrayStarts[a + 1] - arrayStarts[a] - 1; i >= 0; i--) {
+                if (isValid(a, i)) {
+                    cellStarts[cell(a, i) + 1]++;
+                }
+            }
+        }
+        for (int c = 0; c < columns * rows; c++) {
+            cellStarts[c + 1] += cellStarts[c];
+        }
+        pointsByCell = new int[cellStarts[columns * rows]];
+        int[] next = new int[columns * rows];
+        System.arraycopy(cellStarts, 0, next, 0, next.length);
+        for (int a = 0; a < points.size(); a++) {
+            for (int i = 0; i < arrayStarts[a + 1] - arrayStarts[a]; i++) {
+                if (isValid(a, i)) {
+                    pointsByCell[next[cell(a, i)]++] = arrayStarts[a] + i;
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the points in a bounding box.
+     *
+     * @param minLongitude
+     * @param minLatitude
+     * @param maxLongitude
+     * @param maxLatitude
+     * @param longitude    location of the click, the nearest point is returned first
+     * @param latitude
+     * @return the points found, or null when there are no points in the bounding box
+     */
+    public Result find(double minLongitude, double minLatitude, double maxLongitude, double maxLatitude,
+                       double longitude, double latitude) {
+        int col1 = column(minLongitude);
+        int col2 = column(maxLongitude);
+        int row1 = row(minLatitude);
+        int row2 = row(maxLatitude);
+
+        Result result = null;
+        double nearest = Double.MAX_VALUE;
+        for (int r = row1; r <= row2; r++) {
+            for (int c = col1; c <= col2; c++) {
+                int cell = r * columns + c;
+                for (int k = cellStarts[cell]; k < cellStarts[cell + 1]; k++) {
+                    int p = pointsByCell[k];
+                    int a = array(p);
+                    int i = p - arrayStarts[a];
+                    float x = points.get(a)[2 * i];
+                    float y = points.get(a)[2 * i + 1];
+                    if (x < minLongitude || x > maxLongitude || y < minLatitude || y > maxLatitude) {
+                        continue;
+                    }
+                    if (result == null) {
+                        result = new Result(counts != null);
+                        result.minLongitude = result.maxLongitude = x;
+                        result.minLatitude = result.maxLatitude = y;
+                    }
+                    result.points++;
+                    if (counts != null && counts.get(a) != null) {
+                        result.count += counts.get(a)[i];
+                    }
+                    result.minLongitude = Math.min(result.minLongitude, x);
+                    result.maxLongitude = Math.max(result.maxLongitude, x);
+                    result.minLatitude = Math.min(result.minLatitude, y);
+                    result.maxLatitude = Math.max(result.maxLatitude, y);
+
+                    double d = (x - longitude) * (x - longitude) + (y - latitude) * (y - latitude);
+                    if (d < nearest) {
+                        nearest = d;
+                        result.longitude = x;
+                        result.latitude = y;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return number of indexed points
+     */
+    public int size() {
+        return pointsByCell.length;
+    }
+
+    private boolean isValid(int a, int i) {
+        float[] ps = points.get(a);
+        if (Float.isNaN(ps[2 * i]) || Float.isNaN(ps[2 * i + 1])) {
+            return false;
+        }
+        //points that failed to parse are duplicates with a count of 0
+        return counts == null || counts.get(a) == null || counts.get(a)[i] > 0;
+    }
+
+    private int cell(int a, int i) {
+        float[] ps = points.get(a);
+        return row(ps[2 * i + 1]) * columns + column(ps[2 * i]);
+    }
+
+    private int column(double x) {
+        return (int) Math.max(0, Math.min(columns - 1, Math.floor((x - minX) / cellWidth)));
+    }
+
+    private int row(double y) {
+        return (int) Math.max(0, Math.min(rows - 1, Math.floor((y - minY) / cellHeight)));
+    }
+
+    private int array(int p) {
+        int a = 0;
+        while (arrayStarts[a + 1] <= p) {
+            a++;
+        }
+        return a;
+    }
+
+    /**
+     * Points found in a bounding box.
+     */
+    public static class Result {
+        private final boolean hasCount;
+        int points;
+        long count;
+        double longitude;
+        double latitude;
+        double minLongitude;
+        double minLatitude;
+        double maxLongitude;
+        double maxLatitude;
+
+        Result(boolean hasCount) {
+            this.hasCount = hasCount;
+        }
+
+        /**
+         * @return number of points found
+         */
+        public int getPoints() {
+            return points;
+        }
+
+        /**
+         * @return number of occurrences at the points found, or -1 when the tile has no counts
+         */
+        public long getCount() {
+            return hasCount ? count : -1;
+        }
+
+        /**
+         * @return longitude of the point nearest the click
+         */
+        public double getLongitude() {
+            return longitude;
+        }
+
+        /**
+         * @return latitude of the point nearest the click
+         */
+        public double getLatitude() {
+            return latitude;
+        }
+
+        public double getMinLongitude() {
+            return minLongitude;
+        }
+
+        public double getMinLatitude() {
+            return minLatitude;
+        }
+
+        public double getMaxLongitude() {
+            return maxLongitude;
+        }
+
+        public double getMaxLatitude() {
+            return maxLatitude;
+        }
+    }
+}
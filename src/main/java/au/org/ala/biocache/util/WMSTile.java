@@ -34,6 +34,7 @@ public class WMSTile {
     long created;
     long size;
     boolean cached = false;
+    volatile WMSPointIndex pointIndex; //built on first use
 
     public WMSTile(String query, String colourmode, ArrayList<float[]> points, ArrayList<int[]> counts, List<Integer> colours, double[] bbox) {
         this.query = query;
@@ -107,6 +108,25 @@ public class WMSTile {
     public void clearObjects() {
         points = null;
         colours = null;
+        pointIndex = null;
+    }
+
+    /**
+     * Get the index of the points, building it on first use. Only for a cached tile, the points must not change.
+     *
+     * @return the point index, or null when the tile has no points
+     */
+    public WMSPointIndex getPointIndex() {
+        WMSPointIndex index = pointIndex;
+        if (index == null && points != null) {
+            synchronized (this) {
+                index = pointIndex;
+                if (index == null && points != null) {
+                    index = pointIndex = new WMSPointIndex(points, counts);
+                }
+            }
+        }
+        return index;
     }
 
     public List<int[]> getCounts() {
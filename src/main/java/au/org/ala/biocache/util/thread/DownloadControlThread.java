@@ -1,9 +1,11 @@
 package au.org.ala.biocache.util.thread;
 
 import java.util.Queue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -15,10 +17,19 @@ import au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType;
 
 /**
  * A Runnable that can be used to schedule records dumps for a particular class of download.
+ * <p>
+ * A download is only taken from the queue when one of the threads of this pool is free, so downloads wait
+ * in the queue, in fair order, rather than in the executor. An idle pool with a larger maxRecords can then
+ * take a small download that would otherwise wait for a busy pool.
  *
  * @author Peter Ansell
  */
 public class DownloadControlThread implements Runnable {
+    /**
+     * The longest time to block waiting for a download before checking the shutdown flag.
+     */
+    private static final long SHUTDOWN_CHECK_MS = 1000L;
+
     private final Integer maxRecords;
     private final DownloadType downloadType;
     private final int concurrencyLevel;
@@ -28,6 +39,7 @@ public class DownloadControlThread implements Runnable {
 
     private final DownloadServiceExecutor downloadServiceExecutor;
     private final AtomicBoolean shutdownFlag = new AtomicBoolean(false);
+    private final Semaphore freeSlots;
     private final Queue<DownloadDetailsDTO> currentDownloads;
     private final DownloadCreator downloadCreator;
     private final PersistentQueueDAO persistentQueueDAO;
@@ -42,6 +54,7 @@ public class DownloadControlThread implements Runnable {
         this.currentDownloads = currentDownloads;
         this.downloadCreator = downloadCreator;
         this.persistentQueueDAO = persistentQueueDAO;
+        this.freeSlots = new Semaphore(this.concurrencyLevel);
         // Create a dedicated ExecutorService for this thread
         this.downloadServiceExecutor = createExecutor();
     }
@@ -61,13 +74,24 @@ public class DownloadControlThread implements Runnable {
                 if(shutdownFlag.get() || Thread.currentThread().isInterrupted()) {
                     break;
                 }
-                // Busy wait polling
-                // TODO: Convert PersistentQueueDAO to a
-                // blocking/interruptible wait to avoid busy wait
-                Thread.sleep(pollDelay);
-                currentDownload = persistentQueueDAO.getNextDownload(maxRecords, downloadType);
-                if (currentDownload != null) {
-                    downloadServiceExecutor.submitDownload(currentDownload);
+                // Wait for a free thread, then block until a download is available, waking regularly to check for shutdown
+                if (!freeSlots.tryAcquire(SHUTDOWN_CHECK_MS, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+                currentDownload = persistentQueueDAO.waitForNextDownload(maxRecords, downloadType, SHUTDOWN_CHECK_MS, TimeUnit.MILLISECONDS);
+                if (currentDownload == null) {
+                    freeSlots.release();
+                } else {
+                    try {
+                        downloadServiceExecutor.submitDownload(currentDownload);
+                    } catch (RejectedExecutionException e) {
+                        freeSlots.release();
+                        throw e;
+                    }
+                    if (pollDelay > 0) {
+                        // Throttle the rate at which downloads are started by this thread
+                        Thread.sleep(pollDelay);
+                    }
                 }
             }
         } catch (InterruptedException | RejectedExecutionException e) {
@@ -123,7 +147,17 @@ public class DownloadControlThread implements Runnable {
         }
 
         public void submitDownload(DownloadDetailsDTO nextDownload) throws RejectedExecutionException {
-            executor.submit(downloadCreator.createCallable(nextDownload, executionDelay));
+            final Callable<DownloadDetailsDTO> download = downloadCreator.createCallable(nextDownload, executionDelay);
+            executor.submit(new Callable<DownloadDetailsDTO>() {
+                @Override
+                public DownloadDetailsDTO call() throws Exception {
+                    try {
+                        return download.call();
+                    } finally {
+                        freeSlots.release();
+                    }
+                }
+            });
         }
 
         public void shutdown() {
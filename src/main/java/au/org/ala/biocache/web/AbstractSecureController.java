@@ -15,18 +15,15 @@
 package au.org.ala.biocache.web;
 
 import au.org.ala.biocache.Store;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import au.org.ala.biocache.util.ApiKeyCache;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 
+import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.net.URL;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
 
 /**
  * Controllers that need to perform security checks should extend this class and call shouldPerformOperation
@@ -41,8 +38,9 @@ public class AbstractSecureController {
     @Value("${api.check.enabled:true}")
     protected Boolean apiKeyCheckedEnabled = true;
 
-    /** Local cache of keys */
-    private static Set<String> apiKeys = new HashSet<String>();
+    /** Local cache of key checks */
+    @Inject
+    protected ApiKeyCache apiKeyCache;
 
     public AbstractSecureController() {}
 
@@ -86,26 +84,7 @@ public class AbstractSecureController {
             return false;
         }
 
-        if(!apiKeys.contains(keyToTest)) {
-            //check via a web service
-            try {
-                logger.debug("Checking api key: " + keyToTest);
-                String url = apiCheckUrl + keyToTest;
-                ObjectMapper om = new ObjectMapper();
-                Map<String,Object> response = om.readValue(new URL(url), Map.class);
-                logger.debug("Checking api key: " + keyToTest + ", valid: " + response.get("valid"));
-                boolean isValid = (Boolean) response.get("valid");
-                if(isValid) {
-                    apiKeys.add(keyToTest);
-                }
-                return isValid;
-            } catch (Exception e) {
-                logger.error(e.getMessage(), e);
-            }
-        } else {
-            return true;
-        }
-        return false;
+        return apiKeyCache.isValid(apiCheckUrl, keyToTest);
     }
 
     /**
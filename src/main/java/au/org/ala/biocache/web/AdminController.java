@@ -15,8 +15,10 @@
 package au.org.ala.biocache.web;
 
 import java.util.List;
+import java.util.Map;
 
 import au.org.ala.biocache.Store;
+import au.org.ala.biocache.dao.SearchDAO;
 
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
@@ -45,6 +47,8 @@ public class AdminController extends AbstractSecureController {
     private final static Logger logger = Logger.getLogger(AdminController.class);
     @Inject
     protected AuthService authService;
+    @Inject
+    protected SearchDAO searchDAO;
 
     @Value("${ingest.process.threads:4}")
     protected Integer ingestProcessingThreads;
@@ -162,4 +166,17 @@ public class AdminController extends AbstractSecureController {
         authService.reloadCaches();
         return "Done";
     }
+
+    /**
+     * Retrieves the size of the SOLR response cache, and the hit ratio of each cached request type.
+     * @return
+     */
+    @RequestMapping(value="/admin/cache/responses", method=RequestMethod.GET)
+    public @ResponseBody Map<String, Object> responseCacheStats(HttpServletResponse response,
+            @RequestParam(value = "apiKey", required = true) String apiKey) throws Exception {
+        if(shouldPerformOperation(apiKey, response, false)){
+            return searchDAO.getResponseCacheStats();
+        }
+        return null;
+    }
 }
@@ -0,0 +1,49 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.web;
+
+import org.apache.log4j.Logger;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Responds with 503 when an asynchronous request is rejected because its executor is full, or when it times out,
+ * see {@link AsyncRequestExecutors}.
+ */
+@ControllerAdvice
+public class AsyncRequestExceptionHandler {
+
+    private final static Logger logger = Logger.getLogger(AsyncRequestExceptionHandler.class);
+
+    @ExceptionHandler(TaskRejectedException.class)
+    public void taskRejected(TaskRejectedException e, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        logger.warn("Too many requests in progress, rejected: " + request.getRequestURI());
+        response.setHeader("Retry-After", "10");
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many requests in progress, try again later");
+    }
+
+    @ExceptionHandler(AsyncRequestExecutors.AsyncRequestTimeoutException.class)
+    public void timeout(AsyncRequestExecutors.AsyncRequestTimeoutException e, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        logger.warn("Request timed out: " + request.getRequestURI());
+        if (!response.isCommitted()) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The request took too long, try again later");
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/**************************************************************************
+ *  Copyright (C) 2017 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.web;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.ala.client.util.Constants;
+import org.ala.client.util.LoggingContext;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ConcurrentTaskExecutor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.WebAsyncTask;
+
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded executors for requests that are processed asynchronously (Servlet 3 async), so that long running
+ * streams do not hold a container request thread.
+ * <p>
+ * Downloads and WMS tiles have separate executors so that a few large downloads can not delay map tiles. When
+ * all threads are busy requests are queued. When the queue is full the request is rejected with a
+ * TaskRejectedException before it becomes asynchronous, see {@link AsyncRequestExceptionHandler}.
+ * <p>
+ * When a filter in the chain does not support async (JsonpFilter on *.json) the task is run on the request thread,
+ * still limited by the same permits.
+ * <p>
+ * When a request times out its task is cancelled, the worker thread is interrupted and
+ * {@link #isRequestComplete()} is true, so that the task stops writing to a response that the container may
+ * have reused.
+ */
+@Component("asyncRequestExecutors")
+public class AsyncRequestExecutors {
+
+    private final static Logger logger = Logger.getLogger(AsyncRequestExecutors.class);
+
+    /** Number of downloads written at the same time */
+    @Value("${async.download.threads:8}")
+    protected Integer downloadThreads = 8;
+
+    /** Number of downloads waiting for a thread before more are rejected */
+    @Value("${async.download.queue.size:16}")
+    protected Integer downloadQueueSize = 16;
+
+    /** Time (ms) a download may take, 0 for no limit */
+    @Value("${async.download.timeout:0}")
+    protected Long downloadTimeout = 0L;
+
+    /** Number of WMS tiles drawn at the same time */
+    @Value("${async.wms.threads:16}")
+    protected Integer wmsThreads = 16;
+
+    /** Number of WMS tiles waiting for a thread before more are rejected */
+    @Value("${async.wms.queue.size:256}")
+    protected Integer wmsQueueSize = 256;
+
+    /** Time (ms) a WMS tile may take */
+    @Value("${async.wms.timeout:120000}")
+    protected Long wmsTimeout = 120000L;
+
+    private volatile ThreadPoolExecutor downloadExecutor;
+    private volatile ThreadPoolExecutor wmsExecutor;
+
+    /** Running and queued requests of each executor, limited to the threads and the queue size */
+    private volatile Semaphore downloadPermits;
+    private volatile Semaphore wmsPermits;
+
+    /** The request of the task running on the current thread */
+    private final ThreadLocal<AsyncRequest> currentRequest = new ThreadLocal<AsyncRequest>();
+
+    /**
+     * Write a download to the response on the download executor.
+     *
+     * @param request
+     * @param task writes the response, returns null
+     * @return the task for Spring MVC to run, or null when the response was written on the request thread
+     * @throws TaskRejectedException when the download executor is full
+     */
+    public WebAsyncTask<Void> download(HttpServletRequest request, Callable<Void> task) throws Exception {
+        ThreadPoolExecutor executor = getDownloadExecutor();
+        return newTask(request, task, executor, downloadPermits, downloadTimeout);
+    }
+
+    /**
+     * Write a WMS tile to the response on the WMS executor.
+     *
+     * @param request
+     * @param task writes the response, returns null
+     * @return the task for Spring MVC to run, or null when the response was written on the request thread
+     * @throws TaskRejectedException when the WMS executor is full
+     */
+    public WebAsyncTask<Void> wms(HttpServletRequest request, Callable<Void> task) throws Exception {
+        ThreadPoolExecutor executor = getWmsExecutor();
+        return newTask(request, task, executor, wmsPermits, wmsTimeout);
+    }
+
+    /**
+     * @return true when the asynchronous request of the task running on the current thread has completed, for
+     * example because it timed out. Always false for requests that are not asynchronous.
+     */
+    public boolean isRequestComplete() {
+        AsyncRequest asyncRequest = currentRequest.get();
+        return asyncRequest != null && asyncRequest.isComplete();
+    }
+
+    private WebAsyncTask<Void> newTask(HttpServletRequest request, final Callable<Void> task,
+                                       ThreadPoolExecutor executor, Semaphore permits, long timeout) throws Exception {
+        //reject before the request becomes asynchronous, so that the 503 is sent on the request thread
+        if (!permits.tryAcquire()) {
+            throw new TaskRejectedException("Executor " + executor + " is full, rejected: " + request.getRequestURI());
+        }
+
+        if (!request.isAsyncSupported()) {
+            //a filter that wraps the response runs after chain.doFilter, it needs the response written before then
+            try {
+                task.call();
+            } finally {
+                permits.release();
+            }
+            return null;
+        }
+
+        final AsyncRequest asyncRequest = new AsyncRequest(permits);
+        final String userAgent = request.getHeader(Constants.USER_AGENT_PARAM);
+        WebAsyncTask<Void> webAsyncTask = new WebAsyncTask<Void>(timeout, new ConcurrentTaskExecutor(executor),
+                new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        if (!asyncRequest.start()) {
+                            //completed while it was queued
+                            return null;
+                        }
+                        try {
+                            //the user agent is otherwise set for the request thread only, by LoggerConfigFilter
+                            LoggingContext.setProperty(Constants.USER_AGENT_PARAM, userAgent);
+                            currentRequest.set(asyncRequest);
+                            return task.call();
+                        } finally {
+                            currentRequest.remove();
+                            LoggingContext.clearContext();
+                            asyncRequest.finish();
+                        }
+                    }
+                });
+        final String uri = request.getRequestURI();
+        webAsyncTask.onTimeout(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                asyncRequest.cancel();
+                throw new AsyncRequestTimeoutException("Request timed out: " + uri);
+            }
+        });
+        webAsyncTask.onCompletion(new Runnable() {
+            @Override
+            public void run() {
+                asyncRequest.cancel();
+                asyncRequest.release();
+            }
+        });
+        return webAsyncTask;
+    }
+
+    private ThreadPoolExecutor getDownloadExecutor() {
+        ThreadPoolExecutor nextExecutor = downloadExecutor;
+        if (nextExecutor == null) {
+            synchronized (this) {
+                nextExecutor = downloadExecutor;
+                if (nextExecutor == null) {
+                    downloadPermits = new Semaphore(downloadThreads + downloadQueueSize);
+                    nextExecutor = downloadExecutor = newExecutor(downloadThreads, downloadQueueSize, "biocache-async-download-%d");
+                }
+            }
+        }
+        return nextExecutor;
+    }
+
+    private ThreadPoolExecutor getWmsExecutor() {
+        ThreadPoolExecutor nextExecutor = wmsExecutor;
+        if (nextExecutor == null) {
+            synchronized (this) {
+                nextExecutor = wmsExecutor;
+                if (nextExecutor == null) {
+                    wmsPermits = new Semaphore(wmsThreads + wmsQueueSize);
+                    nextExecutor = wmsExecutor = newExecutor(wmsThreads, wmsQueueSize, "biocache-async-wms-%d");
+                }
+            }
+        }
+        return nextExecutor;
+    }
+
+    /**
+     * The queue is not bounded itself, the number of queued tasks is limited by the permits.
+     */
+    private ThreadPoolExecutor newExecutor(int threads, int queueSize, String nameFormat) {
+        logger.info("Creating " + nameFormat + " executor with " + threads + " threads and a queue of " + queueSize);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (downloadExecutor != null) {
+            downloadExecutor.shutdownNow();
+        }
+        if (wmsExecutor != null) {
+            wmsExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * State of an asynchronous request, shared by the request thread, the worker thread and the container.
+     */
+    private static class AsyncRequest {
+        private final Semaphore permits;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+        private volatile boolean complete = false;
+        private Thread worker;
+
+        AsyncRequest(Semaphore permits) {
+            this.permits = permits;
+        }
+
+        /**
+         * @return false when the request is already complete and the task should not run
+         */
+        synchronized boolean start() {
+            if (complete) {
+                return false;
+            }
+            worker = Thread.currentThread();
+            return true;
+        }
+
+        synchronized void finish() {
+            worker = null;
+            //clear an interrupt from cancel() that the task did not handle
+            Thread.interrupted();
+            release();
+        }
+
+        /**
+         * The request is complete, interrupt the task if it is running.
+         */
+        synchronized void cancel() {
+            complete = true;
+            if (worker != null) {
+                worker.interrupt();
+            }
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * An asynchronous request that did not complete within its timeout.
+     */
+    public static class AsyncRequestTimeoutException extends RuntimeException {
+        public AsyncRequestTimeoutException(String message) {
+            super(message);
+        }
+    }
+}
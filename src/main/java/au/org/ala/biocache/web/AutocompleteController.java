@@ -14,6 +14,7 @@
  ***************************************************************************/
 package au.org.ala.biocache.web;
 
+import au.org.ala.biocache.service.SpeciesCountsService;
 import au.org.ala.biocache.service.SpeciesLookupService;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -22,6 +23,7 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 
 import javax.inject.Inject;
+import javax.servlet.http.HttpServletResponse;
 import java.util.Map;
 
 /**
@@ -33,6 +35,9 @@ public class AutocompleteController extends AbstractSecureController {
     @Inject
     protected SpeciesLookupService speciesLookupIndexService;
 
+    @Inject
+    protected SpeciesCountsService speciesCountsService;
+
     @RequestMapping(value = "autocomplete/search", method = RequestMethod.GET)
     public
     @ResponseBody
@@ -47,4 +52,20 @@ public class AutocompleteController extends AbstractSecureController {
 
         return speciesLookupIndexService.search(query, filterQuery, max, searchSynonyms, includeAll, counts);
     }
+
+    /**
+     * Retrieves the refresh queue depth and refresh times of the cached species counts
+     * @return
+     */
+    @RequestMapping(value = "autocomplete/counts/metrics", method = RequestMethod.GET)
+    public
+    @ResponseBody
+    Map<String, Object> countsMetrics(
+            HttpServletResponse response,
+            @RequestParam(value = "apiKey", required = true) String apiKey) throws Exception {
+        if (shouldPerformOperation(apiKey, response, false)) {
+            return speciesCountsService.getRefreshMetrics();
+        }
+        return null;
+    }
 }
@@ -16,6 +16,7 @@ package au.org.ala.biocache.web;
 
 import au.org.ala.biocache.dao.SearchDAO;
 import au.org.ala.biocache.dto.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import net.sf.ehcache.CacheManager;
@@ -24,6 +25,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.apache.solr.client.solrj.response.FieldStatsInfo;
 import org.apache.solr.common.util.NamedList;
+import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Controller;
@@ -40,6 +42,14 @@ import java.io.Serializable;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  */
@@ -71,6 +81,21 @@ public class ChartController extends AbstractSecureController implements Seriali
     @Value("${charts.facets.number.max:10}")
     private Integer maxNumberFacets;
 
+    /** Max number of threads to use in parallel for chart queries */
+    @Value("${charts.query.maxthreads:10}")
+    private Integer maxChartQueryThreads = 10;
+
+    /** Max number of chart queries waiting for a thread, further queries run on the request thread */
+    @Value("${charts.query.queue.size:100}")
+    private Integer chartQueryQueueSize = 100;
+
+    /** Maximum time (ms) to wait for all of the queries of a single chart */
+    @Value("${charts.query.timeout:60000}")
+    private Long chartQueryTimeout = 60000L;
+
+    /** thread pool for chart queries */
+    private transient volatile ThreadPoolExecutor chartExecutor = null;
+
 
     /**
      * Supports various chart types
@@ -132,141 +157,221 @@ public class ChartController extends AbstractSecureController implements Seriali
 
         boolean date = isDate(x);
 
-        for (Map seriesq : seriesFqs) {
-            //update fq
-            String[] fqBackup = searchParams.getFq();
+        //plan the queries for every series up front so that they can be run concurrently
+        List<List<Future<List>>> seriesParts = new ArrayList<List<Future<List>>>(seriesFqs.size());
+        try {
+            for (Map seriesq : seriesFqs) {
+                seriesParts.add(planSeries(searchParams, seriesq, x, xranges, stats, xmissing, fsort,
+                        xRanges.toString(), inverseXranges.toString(), date));
+            }
 
-            if (seriesq.containsKey("fq")) {
-                appendFq(searchParams, seriesq.get("fq").toString());
+            long deadline = System.currentTimeMillis() + chartQueryTimeout;
+            for (int i = 0; i < seriesFqs.size(); i++) {
+                List data = new ArrayList();
+                for (Future<List> part : seriesParts.get(i)) {
+                    data.addAll(waitFor(part, deadline));
+                }
+                seriesFqs.get(i).put("data", data);
+            }
+        } finally {
+            //cancel anything still outstanding after a failure or timeout
+            for (List<Future<List>> parts : seriesParts) {
+                for (Future<List> part : parts) {
+                    part.cancel(true);
+                }
             }
+        }
 
-            List data = new ArrayList();
+        //insert zeros
+        insertZeros(seriesFqs);
+
+        //format output data
+        Map m = new HashMap();
+        m.put("data", seriesFqs);
+        m.put("x", x);
+        m.put("series", series);
+        m.put("value", stats);
+        m.put("xLabel", getFieldDescription(x));
+        m.put("seriesLabel", getFieldDescription(series));
+        m.put("valueLabel", getFieldDescription(stats));
 
-            if (xranges == null && stats == null) {
-                //1. occurrence bar/pie/line chart of field
-                searchParams.setFacet(true);
-                searchParams.setFlimit(maxStringFacets);
-                searchParams.setFsort(fsort);
-                searchParams.setFacets(new String[]{x});
+        return m;
+    }
 
-                if (xRanges.length() > 0) appendFq(searchParams, xRanges.toString());
+    /**
+     * Build the queries required for one chart series and submit them for execution.
+     * <p>
+     * Numeric xranges are collapsed into a single facet.query request. Queries that cannot be
+     * collapsed (the "Other" bucket and the stats for each xrange) are submitted separately so
+     * that they run concurrently.
+     *
+     * @return the parts of the series data, in output order
+     */
+    private List<Future<List>> planSeries(SpatialSearchRequestParams searchParams, Map seriesq,
+                                          final String x, final String xranges, final String stats,
+                                          final Boolean xmissing, final String fsort,
+                                          final String xRanges, final String inverseXranges,
+                                          final boolean date) {
+        List<Future<List>> parts = new ArrayList<Future<List>>();
+        ExecutorService executor = getChartExecutor();
+
+        final SpatialSearchRequestParams seriesParams = copyParams(searchParams);
+        if (seriesq.containsKey("fq")) {
+            appendFq(seriesParams, seriesq.get("fq").toString());
+        }
 
-                Collection<FacetResultDTO> l = searchDAO.findByFulltextSpatialQuery(searchParams, null).getFacetResults();
-                if (l.size() > 0) {
-                    data = l.iterator().next().getFieldResult();
+        if (xranges == null) {
+            //1. occurrence bar/pie/line chart of field
+            //2. mean/max/min/quartile of field2, bar/pie/line chart of field1
+            final SpatialSearchRequestParams facetParams = copyParams(seriesParams);
+            if (xRanges.length() > 0) appendFq(facetParams, xRanges);
+            parts.add(executor.submit(new Callable<List>() {
+                @Override
+                public List call() throws Exception {
+                    List data = new ArrayList();
+                    if (stats == null) {
+                        facetParams.setFacet(true);
+                        facetParams.setFlimit(maxStringFacets);
+                        facetParams.setFsort(fsort);
+                        facetParams.setFacets(new String[]{x});
+
+                        Collection<FacetResultDTO> l = searchDAO.findByFulltextSpatialQuery(facetParams, null).getFacetResults();
+                        if (l.size() > 0) {
+                            data = l.iterator().next().getFieldResult();
+                        }
+                    } else {
+                        data = searchDAO.searchStat(facetParams, stats, x);
+                    }
                     if (!xmissing) {
                         for (int i = data.size() - 1; i >= 0; i--) {
-                            if (StringUtils.isEmpty(((FieldResultDTO) data.get(i)).getLabel())) data.remove(i);
+                            Object o = data.get(i);
+                            String label = o instanceof FieldStatsItem ? ((FieldStatsItem) o).getLabel() : ((FieldResultDTO) o).getLabel();
+                            if (StringUtils.isEmpty(label)) data.remove(i);
                         }
                     }
+                    return data;
                 }
+            }));
 
-                if (inverseXranges.length() > 0) {
-                    searchParams.setFq(fqBackup);
-                    if (seriesq.containsKey("fq")) appendFq(searchParams, seriesq.get("fq").toString());
-
-                    searchParams.setFacet(false);
-                    appendFq(searchParams, inverseXranges.toString());
-                    SearchResultDTO sr = searchDAO.findByFulltextSpatialQuery(searchParams, null);
-                    if (sr != null) {
-                        data.add(new FieldResultDTO("Other", sr.getTotalRecords()));
-                    }
-                }
-            } else if (xranges == null && stats != null) {
-                //2. mean/max/min/quartile of field2, bar/pie/line chart of field1
-                if (xRanges.length() > 0) appendFq(searchParams, xRanges.toString());
-                data = searchDAO.searchStat(searchParams, stats, x);
-                if (!xmissing) {
-                    for (int i = data.size() - 1; i >= 0; i--) {
-                        if (StringUtils.isEmpty(((FieldStatsItem) data.get(i)).getLabel())) data.remove(i);
-                    }
-                }
-
-                if (inverseXranges.length() > 0) {
-                    searchParams.setFq(fqBackup);
-                    if (seriesq.containsKey("fq")) appendFq(searchParams, seriesq.get("fq").toString());
-
-                    searchParams.setFacet(false);
-                    appendFq(searchParams, inverseXranges.toString());
-                    List d = searchDAO.searchStat(searchParams, stats, null);
-                    if (d != null && d.size() > 0) {
-                        ((FieldStatsItem) d.get(0)).setLabel("Other");
-                        data.add(d.get(0));
+            if (inverseXranges.length() > 0) {
+                final SpatialSearchRequestParams otherParams = copyParams(seriesParams);
+                otherParams.setFacet(false);
+                appendFq(otherParams, inverseXranges);
+                parts.add(executor.submit(new Callable<List>() {
+                    @Override
+                    public List call() throws Exception {
+                        List data = new ArrayList();
+                        if (stats == null) {
+                            SearchResultDTO sr = searchDAO.findByFulltextSpatialQuery(otherParams, null);
+                            if (sr != null) {
+                                data.add(new FieldResultDTO("Other", sr.getTotalRecords()));
+                            }
+                        } else {
+                            List d = searchDAO.searchStat(otherParams, stats, null);
+                            if (d != null && d.size() > 0) {
+                                ((FieldStatsItem) d.get(0)).setLabel("Other");
+                                data.add(d.get(0));
+                            }
+                        }
+                        return data;
                     }
-                }
-            } else if (xranges != null && stats == null) {
-                //3. occurrence bar/pie chart of numeric field with predefined ranges (min to <= value1; >value1 <= value2; > value2 <= max)
-
-                //use separate queries for each fq in xranges
-                searchParams.setFacet(false);
-                String[] xrangessplit = xranges.split(",");
-                String[] fqBackup2 = searchParams.getFq();
-                String[] xrangesFqs = new String[searchParams.getFq().length + 1];
-                if (searchParams.getFq().length > 0)
-                    System.arraycopy(searchParams.getFq(), 0, xrangesFqs, 0, searchParams.getFq().length);
-                List output = new ArrayList();
-                for (int i = 0; i < xrangessplit.length - 1; i++) {
-                    Map m = makeRangeMap(i == 0, x, xrangessplit[i], xrangessplit[i + 1], date);
-
-                    xrangesFqs[fqBackup2.length] = m.get("fq").toString();
-                    searchParams.setFq(xrangesFqs);
-
-                    SearchResultDTO l = searchDAO.findByFulltextSpatialQuery(searchParams, null);
-                    if (l != null) {
-                        FieldResultDTO fr = new FieldResultDTO(m.get("label").toString(), l.getTotalRecords(), m.get("fq").toString());
-
-                        output.add(fr);
+                }));
+            }
+        } else if (stats == null) {
+            //3. occurrence bar/pie chart of numeric field with predefined ranges (min to <= value1; >value1 <= value2; > value2 <= max)
+
+            //count all xranges with one facet.query request
+            String[] xrangessplit = xranges.split(",");
+            final List<Map> ranges = new ArrayList<Map>();
+            final List<String> rangeFqs = new ArrayList<String>();
+            for (int i = 0; i < xrangessplit.length - 1; i++) {
+                Map m = makeRangeMap(i == 0, x, xrangessplit[i], xrangessplit[i + 1], date);
+                ranges.add(m);
+                rangeFqs.add(m.get("fq").toString());
+            }
+            parts.add(executor.submit(new Callable<List>() {
+                @Override
+                public List call() throws Exception {
+                    Map<String, Long> counts = searchDAO.getFacetQueryCounts(seriesParams, rangeFqs);
+                    List output = new ArrayList();
+                    for (Map m : ranges) {
+                        String fq = m.get("fq").toString();
+                        output.add(new FieldResultDTO(m.get("label").toString(), counts.get(fq), fq));
                     }
+                    return output;
                 }
-                searchParams.setFq(fqBackup2);
-
-                data = output;
-            } else if (xranges != null && stats != null) {
-                //4. mean/max/min/quartile of field2, occurrence bar/pie chart of numeric field1 with predefined ranges (min to <= value1; >value1 <= value2; > value2 <= max)
-
-                String[] fqs = new String[searchParams.getFq().length + 1];
-                if (searchParams.getFq().length > 0)
-                    System.arraycopy(searchParams.getFq(), 0, fqs, 0, searchParams.getFq().length);
-
-                String[] r = xranges.split(",");
-                List output = new ArrayList<>(r.length - 1);
-                for (int i = 0; i < r.length; i++) {
-                    if (i < r.length - 1) {
-                        Map m = makeRangeMap(i == 0, x, r[i], r[i + 1], date);
-                        fqs[fqs.length - 1] = m.get("fq").toString();
-                        searchParams.setFq(fqs);
-
-                        List result = searchDAO.searchStat(searchParams, stats, null);
+            }));
+        } else {
+            //4. mean/max/min/quartile of field2, occurrence bar/pie chart of numeric field1 with predefined ranges (min to <= value1; >value1 <= value2; > value2 <= max)
+
+            //one stats request for each xrange, run concurrently
+            String[] r = xranges.split(",");
+            for (int i = 0; i < r.length - 1; i++) {
+                final Map m = makeRangeMap(i == 0, x, r[i], r[i + 1], date);
+                final SpatialSearchRequestParams rangeParams = copyParams(seriesParams);
+                appendFq(rangeParams, m.get("fq").toString());
+                parts.add(executor.submit(new Callable<List>() {
+                    @Override
+                    public List call() throws Exception {
+                        List result = searchDAO.searchStat(rangeParams, stats, null);
                         if (result.size() > 0) {
-                            ((FieldStatsItem) result.iterator().next()).setFq(fqs[fqs.length - 1]);
+                            ((FieldStatsItem) result.iterator().next()).setFq(m.get("fq").toString());
                             ((FieldStatsItem) result.iterator().next()).setLabel(m.get("label").toString());
-                            output.addAll(result);
                         }
+                        return result;
                     }
-                }
-
-                data = output;
+                }));
             }
+        }
 
-            seriesq.put("data", data);
+        return parts;
+    }
 
-            searchParams.setFq(fqBackup);
+    /**
+     * Wait for a chart query to complete, no later than the chart deadline.
+     */
+    private List waitFor(Future<List> part, long deadline) throws Exception {
+        try {
+            return part.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.error("Chart queries did not complete within " + chartQueryTimeout + "ms");
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
         }
+    }
 
-        //insert zeros
-        insertZeros(seriesFqs);
-
-        //format output data
-        Map m = new HashMap();
-        m.put("data", seriesFqs);
-        m.put("x", x);
-        m.put("series", series);
-        m.put("value", stats);
-        m.put("xLabel", getFieldDescription(x));
-        m.put("seriesLabel", getFieldDescription(series));
-        m.put("valueLabel", getFieldDescription(stats));
+    private SpatialSearchRequestParams copyParams(SpatialSearchRequestParams searchParams) {
+        SpatialSearchRequestParams copy = new SpatialSearchRequestParams();
+        BeanUtils.copyProperties(searchParams, copy);
+        //formatSearchQuery may substitute fq values in place
+        copy.setFq(searchParams.getFq().clone());
+        return copy;
+    }
 
-        return m;
+    /**
+     * @return An instance of ExecutorService used to concurrently execute the queries of a chart, also used by
+     * {@link ScatterplotController}.
+     */
+    ExecutorService getChartExecutor() {
+        ThreadPoolExecutor nextExecutor = chartExecutor;
+        if (nextExecutor == null) {
+            synchronized (this) {
+                nextExecutor = chartExecutor;
+                if (nextExecutor == null) {
+                    nextExecutor = new ThreadPoolExecutor(maxChartQueryThreads, maxChartQueryThreads, 60L, TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<Runnable>(Math.max(1, chartQueryQueueSize)),
+                            new ThreadFactoryBuilder().setNameFormat("biocache-chart-%d").setDaemon(true).build(),
+                            new ThreadPoolExecutor.CallerRunsPolicy());
+                    nextExecutor.allowCoreThreadTimeOut(true);
+                    chartExecutor = nextExecutor;
+                }
+            }
+        }
+        return nextExecutor;
     }
 
     private void insertZeros(List<Map> seriesFqs) {
@@ -110,6 +110,22 @@ public class DownloadController extends AbstractSecureController {
         return null;
     }
 
+    /**
+     * Retrieves percentiles of the time downloads waited in the queue, by record size class
+     * @return
+     */
+    @RequestMapping("occurrences/offline/download/queueTimes")
+    public @ResponseBody Map<String, Map<String, Long>> getQueueTimes(
+            HttpServletResponse response,
+            @RequestParam(value = "apiKey", required = true) String apiKey) throws Exception {
+        if (apiKey != null) {
+            if (shouldPerformOperation(apiKey, response, false)) {
+                return persistentQueueDAO.getQueueTimes();
+            }
+        }
+        return null;
+    }
+
     /**
      * Add a download to the offline queue
      * @param requestParams
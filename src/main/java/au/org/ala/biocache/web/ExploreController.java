@@ -20,18 +20,22 @@ import au.org.ala.biocache.dao.SearchDAO;
 import au.org.ala.biocache.dao.SearchDAOImpl;
 import au.org.ala.biocache.dto.*;
 import au.org.ala.biocache.model.Qid;
+import org.apache.commons.collections.map.LRUMap;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.WebAsyncTask;
 
 import javax.inject.Inject;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 /**
  * Controller for the "explore your area" page
@@ -55,6 +59,14 @@ public class ExploreController {
     @Inject
     protected QidCacheDAO qidCacheDao;
 
+    /** Executor for the endemic species download */
+    @Inject
+    protected AsyncRequestExecutors asyncRequestExecutors;
+
+    //Stores query + species group + index version, and, species group hierarchy for the area
+    private LRUMap hierarchyCache = new LRUMap(1000);
+    private Object hierarchyLock = new Object();
+
     /** Mapping of radius in km to OpenLayers zoom level */
     public final static HashMap<Float, Integer> radiusToZoomLevelMap = new HashMap<Float, Integer>();
     static {
@@ -86,6 +98,23 @@ public class ExploreController {
     public @ResponseBody Collection<SpeciesGroupDTO> yourHierarchicalAreaView(
             SpatialSearchRequestParams requestParams, String speciesGroup) throws Exception {
 
+        String key = requestParams.toString() + "|" + speciesGroup + "|" + searchDao.getIndexVersion(false);
+        Collection<SpeciesGroupDTO> groups;
+        synchronized (hierarchyLock) {
+            groups = (Collection<SpeciesGroupDTO>) hierarchyCache.get(key);
+        }
+        if(groups == null) {
+            groups = getHierarchicalAreaGroups(requestParams, speciesGroup);
+            synchronized (hierarchyLock) {
+                hierarchyCache.put(key, groups);
+            }
+        }
+        return groups;
+    }
+
+    private Collection<SpeciesGroupDTO> getHierarchicalAreaGroups(SpatialSearchRequestParams requestParams,
+                                                                  String speciesGroup) throws Exception {
+
         List<au.org.ala.biocache.vocab.SpeciesGroup> ssgs = au.org.ala.biocache.Store.retrieveSpeciesSubgroups();
         Map<String, SpeciesGroupDTO> parentGroupMap = new LinkedHashMap<String, SpeciesGroupDTO>();
 
@@ -100,35 +129,33 @@ public class ExploreController {
             }
         }
 
-        //get the species group occurrence counts
+        //get the species subgroup occurrence counts and distinct taxon names with a single pivot query
         requestParams.setFormattedQuery(null);
-        requestParams.setFacets(new String[]{"species_subgroup"});
+        requestParams.setFacets(new String[]{"species_subgroup", "taxon_name"});
         requestParams.setPageSize(0);
         requestParams.setFlimit(-1);
         if(StringUtils.isNotBlank(speciesGroup)){
             requestParams.setFq(new String[]{"species_group:\"" + speciesGroup +"\""});
         }
 
-        //retrieve a list of subgroups with occurrences matching the query
-        SearchResultDTO speciesSubgroupCounts = searchDao.findByFulltextSpatialQuery(requestParams, null);
-        Map<String, Long> occurrenceCounts = new HashMap<String,Long>();
-        if(speciesSubgroupCounts.getFacetResults().size() > 0) {
-            FacetResultDTO result = speciesSubgroupCounts.getFacetResults().iterator().next();
-            for(FieldResultDTO fr: result.getFieldResult()){
-                occurrenceCounts.put(fr.getLabel(), fr.getCount());
-            }
-        }
-
-        //do a facet query for each species subgroup
-        for(String ssg : occurrenceCounts.keySet()){
-
-            requestParams.setQ("species_subgroup:\"" + ssg +"\"");
-            requestParams.setFormattedQuery(null);
-            requestParams.setFacets(new String[]{"taxon_name"});
+        List<FacetPivotResultDTO> pivot = searchDao.searchPivot(requestParams);
+        if(pivot.size() > 0 && pivot.get(0).getPivotResult() != null) {
+            for(FacetPivotResultDTO subgroup : pivot.get(0).getPivotResult()) {
+                String ssg = subgroup.getValue();
+                if(StringUtils.isEmpty(ssg)) {
+                    continue;
+                }
 
-            List<FacetResultDTO> facetResultDTO = searchDao.getFacetCounts(requestParams);
-            if(facetResultDTO.size() > 0){
-                FacetResultDTO result = facetResultDTO.get(0);
+                //distinct taxon names within the subgroup
+                long speciesCount = 0;
+                if(subgroup.getPivotResult() != null) {
+                    for(FacetPivotResultDTO taxon : subgroup.getPivotResult()) {
+                        if(StringUtils.isNotEmpty(taxon.getValue())) {
+                            speciesCount++;
+                        }
+                    }
+                }
+                long occurrenceCount = subgroup.getCount();
 
                 String parentName = parentLookup.get(ssg.toLowerCase());
                 SpeciesGroupDTO parentGroup = parentGroupMap.get(parentName);
@@ -136,9 +163,9 @@ public class ExploreController {
                     if(parentGroup.getChildGroups() == null){
                         parentGroup.setChildGroups(new ArrayList<SpeciesGroupDTO>());
                     }
-                    parentGroup.getChildGroups().add(new SpeciesGroupDTO(ssg, result.getCount(), occurrenceCounts.get(ssg), 2));
-                    parentGroup.setSpeciesCount(parentGroup.getSpeciesCount() + result.getCount());
-                    parentGroup.setCount(parentGroup.getCount() + occurrenceCounts.get(ssg));
+                    parentGroup.getChildGroups().add(new SpeciesGroupDTO(ssg, speciesCount, occurrenceCount, 2));
+                    parentGroup.setSpeciesCount(parentGroup.getSpeciesCount() + speciesCount);
+                    parentGroup.setCount(parentGroup.getCount() + occurrenceCount);
                 } else {
                     logger.warn("Parent group lookup failed for: " + parentName + ", ssg: " + ssg);
                 }
@@ -465,28 +492,40 @@ public class ExploreController {
     }
 
    /**
-    * Returns the species that only have occurrences in the supplied WKT.
+    * Returns the species that only have occurrences in the supplied WKT. Written asynchronously on the
+    * download executor.
     * @return
     */
     @RequestMapping(value = "/explore/endemic/species.csv", method = RequestMethod.GET)
-    public void getEndemicSpeciesCSV(SpatialSearchRequestParams requestParams,HttpServletResponse response) throws Exception{
+    public @ResponseBody WebAsyncTask<Void> getEndemicSpeciesCSV(final SpatialSearchRequestParams requestParams, HttpServletRequest request,
+                                                                 final HttpServletResponse response) throws Exception{
         requestParams.setFacets(new String[]{SearchDAOImpl.NAMES_AND_LSID});
         requestParams.setFq((String[])ArrayUtils.add(requestParams.getFq(), "species_guid:[* TO *]"));
-        List<FieldResultDTO> list = getSpeciesOnlyInWKT(requestParams, response);
-        response.setCharacterEncoding("UTF-8");
-        response.setContentType("text/plain");
-        java.io.PrintWriter writer = response.getWriter();
-        writer.write("Family,Scientific name,Common name,Taxon rank,LSID,# Occurrences");
-        for(FieldResultDTO item: list){
-            String s = item.getLabel();
-            if (s.startsWith("\"") && s.endsWith("\"") && s.length() > 2) s = s.substring(1, s.length() - 1);
-            String[] values = s.split("\\|",6);
-            if(values.length >= 5){
-                writer.write("\n"+values[4]+",\""+values[0]+"\",\""+values[2]+"\",,"+values[1] + ","+item.getCount());
+        return asyncRequestExecutors.download(request, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                List<FieldResultDTO> list = getSpeciesOnlyInWKT(requestParams, response);
+                if (list == null) {
+                    //the error has been sent
+                    return null;
+                }
+                response.setCharacterEncoding("UTF-8");
+                response.setContentType("text/plain");
+                java.io.PrintWriter writer = response.getWriter();
+                writer.write("Family,Scientific name,Common name,Taxon rank,LSID,# Occurrences");
+                for(FieldResultDTO item: list){
+                    String s = item.getLabel();
+                    if (s.startsWith("\"") && s.endsWith("\"") && s.length() > 2) s = s.substring(1, s.length() - 1);
+                    String[] values = s.split("\\|",6);
+                    if(values.length >= 5){
+                        writer.write("\n"+values[4]+",\""+values[0]+"\",\""+values[2]+"\",,"+values[1] + ","+item.getCount());
+                    }
+                }
+                writer.flush();
+                writer.close();
+                return null;
             }
-        }
-        writer.flush();
-        writer.close();
+        });
     }
 
     /**
@@ -49,6 +49,7 @@ import org.springframework.validation.ObjectError;
 import org.springframework.validation.Validator;
 import org.springframework.web.bind.WebDataBinder;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.WebAsyncTask;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
@@ -58,6 +59,7 @@ import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
@@ -80,6 +82,9 @@ public class OccurrenceController extends AbstractSecureController {
     /** Fulltext search DAO */
     @Inject
     protected SearchDAO searchDAO;
+    /** Executors for downloads that are written asynchronously */
+    @Inject
+    protected AsyncRequestExecutors asyncRequestExecutors;
     /** Data Resource DAO */
     @Inject
     protected SearchUtils searchUtils;
@@ -718,35 +723,44 @@ public class OccurrenceController extends AbstractSecureController {
      *
      * ONLY 1 facet should be included in the params.
      *
+     * The facet is written asynchronously on the download executor.
+     *
      * @param requestParams
      * @param response
      * @throws Exception
      */
     @RequestMapping(value = "/occurrences/facets/download*", method = RequestMethod.GET)
-    public void downloadFacet(
-            DownloadRequestParams requestParams,
-            @RequestParam(value="count", required=false, defaultValue="false") boolean includeCount,
-            @RequestParam(value="lookup" ,required=false, defaultValue="false") boolean lookupName,
-            @RequestParam(value="synonym", required=false, defaultValue="false") boolean includeSynonyms,
-            @RequestParam(value = "lists", required = false, defaultValue = "false") boolean includeLists,
+    public @ResponseBody WebAsyncTask<Void> downloadFacet(
+            final DownloadRequestParams requestParams,
+            @RequestParam(value="count", required=false, defaultValue="false") final boolean includeCount,
+            @RequestParam(value="lookup" ,required=false, defaultValue="false") final boolean lookupName,
+            @RequestParam(value="synonym", required=false, defaultValue="false") final boolean includeSynonyms,
+            @RequestParam(value = "lists", required = false, defaultValue = "false") final boolean includeLists,
             @RequestParam(value="ip", required=false) String ip,
             HttpServletRequest request,
-            HttpServletResponse response) throws Exception {
+            final HttpServletResponse response) throws Exception {
         afterInitialisation();
         if(requestParams.getFacets().length > 0){
-            ip = ip == null ? getIPAddress(request) : ip;
-            DownloadDetailsDTO dd = downloadService.registerDownload(requestParams, ip, DownloadDetailsDTO.DownloadType.FACET);
-            try {
-                String filename = requestParams.getFile() != null ? requestParams.getFile():requestParams.getFacets()[0];
-                response.setHeader("Cache-Control", "must-revalidate");
-                response.setHeader("Pragma", "must-revalidate");
-                response.setHeader("Content-Disposition", "attachment;filename=" + filename +".csv");
-                response.setContentType("text/csv");
-                searchDAO.writeFacetToStream(requestParams, includeCount, lookupName, includeSynonyms, includeLists, response.getOutputStream(), dd);
-            } finally {
-                downloadService.unregisterDownload(dd);
-            }
+            final String downloadIp = ip == null ? getIPAddress(request) : ip;
+            return asyncRequestExecutors.download(request, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    DownloadDetailsDTO dd = downloadService.registerDownload(requestParams, downloadIp, DownloadDetailsDTO.DownloadType.FACET);
+                    try {
+                        String filename = requestParams.getFile() != null ? requestParams.getFile():requestParams.getFacets()[0];
+                        response.setHeader("Cache-Control", "must-revalidate");
+                        response.setHeader("Pragma", "must-revalidate");
+                        response.setHeader("Content-Disposition", "attachment;filename=" + filename +".csv");
+                        response.setContentType("text/csv");
+                        searchDAO.writeFacetToStream(requestParams, includeCount, lookupName, includeSynonyms, includeLists, response.getOutputStream(), dd);
+                    } finally {
+                        downloadService.unregisterDownload(dd);
+                    }
+                    return null;
+                }
+            });
         }
+        return null;
     }
 
     /**
@@ -993,41 +1007,48 @@ public class OccurrenceController extends AbstractSecureController {
         return null;
     }
 
+    /**
+     * Download occurrences from the index. The download is written asynchronously on the download executor,
+     * a validation error is sent as 400 before the request becomes asynchronous.
+     */
     @RequestMapping(value = "/occurrences/index/download*", method = RequestMethod.GET)
-    public String occurrenceIndexDownload(@Valid DownloadRequestParams requestParams,
+    public @ResponseBody WebAsyncTask<Void> occurrenceIndexDownload(@Valid final DownloadRequestParams requestParams,
                                           BindingResult result,
-                                          @RequestParam(value="apiKey", required=false) String apiKey,
+                                          @RequestParam(value="apiKey", required=false) final String apiKey,
                                           @RequestParam(value="ip", required=false) String ip,
-                                          @RequestParam(value="zip", required=false, defaultValue="true") Boolean zip,
-                                          Model model,
-                                          HttpServletResponse response,
-                                          HttpServletRequest request) throws Exception{
+                                          @RequestParam(value="zip", required=false, defaultValue="true") final Boolean zip,
+                                          final HttpServletResponse response,
+                                          final HttpServletRequest request) throws Exception{
         afterInitialisation();
 
         if(result.hasErrors()) {
             logger.info("validation failed  " + result.getErrorCount() + " checks");
             logger.debug(result.toString());
-            model.addAttribute("errorMessage", getValidationErrorMessage(result));
-            //response.setStatus(response.SC_INTERNAL_SERVER_ERROR);
-            return VALIDATION_ERROR;//result.toString();
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, getValidationErrorMessage(result));
+            return null;
         }
 
-        ip = ip == null ? getIPAddress(request) : ip;
-        ServletOutputStream out = response.getOutputStream();
+        final String downloadIp = ip == null ? getIPAddress(request) : ip;
         //search params must have a query or formatted query for the download to work
         if (requestParams.getQ().isEmpty() && requestParams.getFormattedQuery().isEmpty()) {
             return null;
         }
-        if(apiKey != null){
-            occurrenceSensitiveDownload(requestParams, apiKey, ip, true, zip, response, request);
-            return null;
-        }
-        try {
-            downloadService.writeQueryToStream(requestParams, response, ip, new CloseShieldOutputStream(out), false, true, zip);
-        } catch(Exception e){
-            logger.error(e.getMessage(), e);
-        }
-        return null;
+        return asyncRequestExecutors.download(request, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                if(apiKey != null){
+                    occurrenceSensitiveDownload(requestParams, apiKey, downloadIp, true, zip, response, request);
+                    return null;
+                }
+                try {
+                    ServletOutputStream out = response.getOutputStream();
+                    downloadService.writeQueryToStream(requestParams, response, downloadIp, new CloseShieldOutputStream(out), false, true, zip);
+                } catch(Exception e){
+                    logger.error(e.getMessage(), e);
+                }
+                return null;
+            }
+        });
     }
 
     public String occurrenceSensitiveDownload(DownloadRequestParams requestParams,
@@ -1118,13 +1139,20 @@ public class OccurrenceController extends AbstractSecureController {
      * connected index (to 4 decimal places)
      */
     @RequestMapping(value="/occurrences/coordinates*")
-    public void dumpDistinctLatLongs(SearchRequestParams requestParams,HttpServletResponse response) throws Exception{
+    public @ResponseBody WebAsyncTask<Void> dumpDistinctLatLongs(final SearchRequestParams requestParams, HttpServletRequest request,
+                                                                 final HttpServletResponse response) throws Exception{
         afterInitialisation();
         requestParams.setFacets(new String[]{"lat_long"});
         if(requestParams.getQ().length()<1)
             requestParams.setQ("*:*");
-        ServletOutputStream out = response.getOutputStream();
-        searchDAO.writeCoordinatesToStream(requestParams,out);
+        return asyncRequestExecutors.download(request, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                ServletOutputStream out = response.getOutputStream();
+                searchDAO.writeCoordinatesToStream(requestParams,out);
+                return null;
+            }
+        });
     }
 
     /**
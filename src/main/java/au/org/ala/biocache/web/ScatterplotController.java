@@ -4,17 +4,25 @@ import au.org.ala.biocache.dao.SearchDAO;
 import au.org.ala.biocache.dto.IndexFieldDTO;
 import au.org.ala.biocache.dto.SearchResultDTO;
 import au.org.ala.biocache.dto.SpatialSearchRequestParams;
+import org.apache.commons.lang.ArrayUtils;
 import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.response.FieldStatsInfo;
 import org.apache.solr.common.SolrDocumentList;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartRenderingInfo;
 import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.NumberAxis;
 import org.jfree.chart.encoders.EncoderUtil;
 import org.jfree.chart.encoders.ImageFormat;
 import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.chart.plot.XYPlot;
+import org.jfree.chart.renderer.LookupPaintScale;
+import org.jfree.chart.renderer.xy.XYBlockRenderer;
 import org.jfree.data.xy.DefaultXYDataset;
+import org.jfree.data.xy.DefaultXYZDataset;
 import org.jfree.ui.RectangleEdge;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -41,23 +49,42 @@ import java.util.List;
  * - pointcolour, colour as RGB string like FF0000 for red, default 0000FF
  * - pointradius, double default 3
  *
+ * Queries with more than scatterplot.density.threshold records are drawn as density bins
+ * using a 2D histogram from the index, instead of individual points.
+ *
  */
 @Controller
 public class ScatterplotController {
 
     private static Logger logger = Logger.getLogger(ScatterplotController.class);
 
-    private final static int PAGE_SIZE = 100000000;
     private final static String DEFAULT_SCATTERPLOT_TITLE = " ";
     private final static String DEFAULT_SCATTERPLOT_HEIGHT = "256";
     private final static String DEFAULT_SCATTERPLOT_WIDTH = "256";
     private final static String DEFAULT_SCATTERPLOT_POINTCOLOUR = "0000FF";
     private final static String DEFAULT_SCATTERPLOT_POINTRADIUS = "3";
     private final static String [] VALID_DATATYPES = {"double","int","long"};
+    private final static int DENSITY_SHADES = 10;
+
+    /** Maximum number of points drawn on a scatterplot. Larger results are sampled by record id. */
+    @Value("${scatterplot.points.max:5000}")
+    protected Integer maxPoints = 5000;
+
+    /** Record count above which a density scatterplot is drawn instead of individual points. */
+    @Value("${scatterplot.density.threshold:50000}")
+    protected Long densityThreshold = 50000L;
+
+    /** Number of bins along each axis of a density scatterplot. */
+    @Value("${scatterplot.density.bins:50}")
+    protected Integer densityBins = 50;
 
     @Inject
     protected SearchDAO searchDAO;
 
+    /** Runs the density requests on the bounded chart executor */
+    @Inject
+    protected ChartController chartController;
+
     @RequestMapping(value = {"/scatterplot"}, method = RequestMethod.GET)
     public void scatterplot(SpatialSearchRequestParams requestParams,
                             @RequestParam(value = "x", required = true) String x,
@@ -137,6 +164,8 @@ public class ScatterplotController {
         //verify x and y are numerical and stored
         String displayNameX = null;
         String displayNameY = null;
+        String dataTypeX = null;
+        String dataTypeY = null;
         List<String> validDatatypes = Arrays.asList(VALID_DATATYPES);
         Set<IndexFieldDTO> indexedFields = searchDAO.getIndexedFields();
 
@@ -153,6 +182,7 @@ public class ScatterplotController {
                 }
                 else {
                     displayNameX = xField.getDescription();
+                    dataTypeX = xField.getDataType();
                     break;
                 }
             }
@@ -174,6 +204,7 @@ public class ScatterplotController {
                 }
                 else {
                     displayNameY = yField.getDescription();
+                    dataTypeY = yField.getDataType();
                     break;
                 }
             }
@@ -183,39 +214,85 @@ public class ScatterplotController {
             throw new Exception("Unknown, unsupported datatype, or not stored, value for y: " + y, toThrowY);
         }
 
+        //only records with both values can be plotted
+        String[] fqs = (String[]) ArrayUtils.addAll(requestParams.getFq(), new String[]{x + ":[* TO *]", y + ":[* TO *]"});
+
+        //get the record count and extent of both fields
+        SpatialSearchRequestParams statsParams = copyParams(requestParams, fqs);
+        statsParams.setFacets(new String[]{x, y});
+        statsParams.setPageSize(0);
+        Map<String, FieldStatsInfo> stats = searchDAO.getStatistics(statsParams);
+        requestParams.setDisplayString(statsParams.getDisplayString());
+
+        FieldStatsInfo statsX = stats != null ? stats.get(x) : null;
+        FieldStatsInfo statsY = stats != null ? stats.get(y) : null;
+        if(statsX == null || statsY == null || statsX.getCount() == null || statsX.getCount() == 0
+                || statsX.getMin() == null || statsY.getMin() == null) {
+            throw new Exception("No valid records found for these input parameters");
+        }
+
+        JFreeChart jChart;
+        if(statsX.getCount() <= densityThreshold) {
+            jChart = makePointChart(copyParams(requestParams, fqs), statsX.getCount().intValue(), x, y,
+                    title.equals(" ") ? requestParams.getDisplayString() : title, displayNameX, displayNameY);
+        } else {
+            jChart = makeDensityChart(copyParams(requestParams, fqs), x, statsX, dataTypeX, y, statsY, dataTypeY,
+                    title.equals(" ") ? requestParams.getDisplayString() : title, displayNameX, displayNameY, pointcolour);
+        }
+        jChart.setBackgroundPaint(Color.white);
+
+        //styling
+        XYPlot plot = (XYPlot) jChart.getPlot();
+        Font axisfont = new Font("Arial", Font.PLAIN, 10);
+        Font titlefont = new Font("Arial", Font.BOLD, 11);
+        plot.getDomainAxis().setLabelFont(axisfont);
+        plot.getDomainAxis().setTickLabelFont(axisfont);
+        plot.getRangeAxis().setLabelFont(axisfont);
+        plot.getRangeAxis().setTickLabelFont(axisfont);
+        plot.setBackgroundPaint(new Color(220, 220, 220));
+        jChart.getTitle().setFont(titlefont);
+
+        if(!(plot.getRenderer() instanceof XYBlockRenderer)) {
+            //point shape and colour
+            Color c = new Color(Integer.parseInt(pointcolour, 16));
+            plot.getRenderer().setSeriesPaint(0, c);
+            plot.getRenderer().setSeriesShape(0, new Ellipse2D.Double(-pointradius, -pointradius, pointradius*2, pointradius*2));
+        }
+
+        return jChart;
+    }
+
+    /**
+     * Scatterplot of individual records. At most maxPoints records are requested, larger results are sampled.
+     */
+    private JFreeChart makePointChart(SpatialSearchRequestParams requestParams, int count, String x, String y,
+                                      String title, String displayNameX, String displayNameY) throws Exception {
         //get data
-        requestParams.setPageSize(PAGE_SIZE);
+        if(count > maxPoints) {
+            requestParams.setFq((String[]) ArrayUtils.add(requestParams.getFq(), getSampleFq(count)));
+        }
+        requestParams.setPageSize(Math.min(count, maxPoints));
         requestParams.setFl(x + "," + y);
         SolrDocumentList sdl = searchDAO.findByFulltext(requestParams);
-        int size = sdl.size();
+        int size = sdl != null ? sdl.size() : 0;
         double [][] data = new double[2][size];
-        int count = 0;
+        int n = 0;
         for(int i=0;i<size;i++) {
             try {
-                Object a = sdl.get(i).getFieldValue(y);
-                Object b = sdl.get(i).getFieldValue(x);
-                data[1][i] = Double.parseDouble(String.valueOf(sdl.get(i).getFieldValue(y)));
-                if(a instanceof Double) {
-                    data[0][i] = (Double) a;
-                } else {
-                    data[0][i] = Double.parseDouble(String.valueOf(a));
-                }
-
-                if(b instanceof Double) {
-                    data[1][i] = (Double) b;
-                } else {
-                    data[1][i] = Double.parseDouble(String.valueOf(b));
-                }
-
-                count++;
+                data[0][n] = toDouble(sdl.get(i).getFieldValue(y));
+                data[1][n] = toDouble(sdl.get(i).getFieldValue(x));
+                n++;
             } catch (Exception e) {
-                data[0][i] = Double.NaN;
-                data[1][i] = Double.NaN;
+                //skip values that are not numbers
             }
         }
 
-        if(count == 0) {
-            throw new Exception("valid records found for these input parameters");
+        if(n == 0) {
+            throw new Exception("No valid records found for these input parameters");
+        }
+        if(n < size) {
+            data[0] = Arrays.copyOf(data[0], n);
+            data[1] = Arrays.copyOf(data[1], n);
         }
 
         //create dataset
@@ -223,30 +300,133 @@ public class ScatterplotController {
         xyDataset.addSeries("series", data);
 
         //create chart
-        JFreeChart jChart = ChartFactory.createScatterPlot(
-                title.equals(" ")?requestParams.getDisplayString():title //chart display name
+        return ChartFactory.createScatterPlot(
+                title //chart display name
                 , displayNameX //x-axis display name
                 , displayNameY //y-axis display name
                 , xyDataset
                 , PlotOrientation.HORIZONTAL, false, false, false);
-        jChart.setBackgroundPaint(Color.white);
+    }
 
-        //styling
-        XYPlot plot = (XYPlot) jChart.getPlot();
-        Font axisfont = new Font("Arial", Font.PLAIN, 10);
-        Font titlefont = new Font("Arial", Font.BOLD, 11);
-        plot.getDomainAxis().setLabelFont(axisfont);
-        plot.getDomainAxis().setTickLabelFont(axisfont);
-        plot.getRangeAxis().setLabelFont(axisfont);
-        plot.getRangeAxis().setTickLabelFont(axisfont);
-        plot.setBackgroundPaint(new Color(220, 220, 220));
-        jChart.getTitle().setFont(titlefont);
+    /**
+     * Filter selecting about maxPoints of count records by the first two characters of the record id. Record ids are
+     * random UUIDs, so each of the 256 prefixes holds about 1/256 of the records. The prefixes are evenly spaced so
+     * that the same records are plotted each time.
+     */
+    private String getSampleFq(int count) {
+        int prefixes = (int) Math.max(1, Math.min(256, Math.ceil(256.0 * maxPoints / count)));
+        StringBuilder sb = new StringBuilder("id:(");
+        for(int i=0;i<prefixes;i++) {
+            if(i > 0) {
+                sb.append(" OR ");
+            }
+            sb.append(String.format("%02x", i * 256 / prefixes)).append('*');
+        }
+        return sb.append(')').toString();
+    }
 
-        //point shape and colour
-        Color c = new Color(Integer.parseInt(pointcolour, 16));
-        plot.getRenderer().setSeriesPaint(0, c);
-        plot.getRenderer().setSeriesShape(0, new Ellipse2D.Double(-pointradius, -pointradius, pointradius*2, pointradius*2));
+    /**
+     * Scatterplot of record density, from a 2D histogram of x and y built by the index.
+     */
+    private JFreeChart makeDensityChart(SpatialSearchRequestParams requestParams,
+                                        String x, FieldStatsInfo statsX, String dataTypeX,
+                                        String y, FieldStatsInfo statsY, String dataTypeY,
+                                        String title, String displayNameX, String displayNameY, String pointcolour) throws Exception {
+        double minX = ((Number) statsX.getMin()).doubleValue();
+        double maxX = ((Number) statsX.getMax()).doubleValue();
+        double minY = ((Number) statsY.getMin()).doubleValue();
+        double maxY = ((Number) statsY.getMax()).doubleValue();
+
+        Number startX = isDecimal(dataTypeX) ? (Number) minX : (Number) (long) minX;
+        Number startY = isDecimal(dataTypeY) ? (Number) minY : (Number) (long) minY;
+        Number gapX = getBinWidth(minX, maxX, dataTypeX);
+        Number gapY = getBinWidth(minY, maxY, dataTypeY);
+        int binsX = Math.max(1, (int) Math.ceil((maxX - minX) / gapX.doubleValue()));
+        int binsY = Math.max(1, (int) Math.ceil((maxY - minY) / gapY.doubleValue()));
+
+        long[][] grid = searchDAO.getDensityGrid(requestParams, x, startX, gapX, binsX, y, startY, gapY, binsY,
+                chartController.getChartExecutor());
+
+        //one block per non-empty bin, centred on the bin
+        int cells = 0;
+        long maxCount = 0;
+        for(long[] row : grid) {
+            for(long c : row) {
+                if(c > 0) {
+                    cells++;
+                    maxCount = Math.max(maxCount, c);
+                }
+            }
+        }
+        if(cells == 0) {
+            throw new Exception("No valid records found for these input parameters");
+        }
+        double [][] data = new double[3][cells];
+        int n = 0;
+        for(int i=0;i<binsX;i++) {
+            for(int j=0;j<binsY;j++) {
+                if(grid[i][j] > 0) {
+                    data[0][n] = startY.doubleValue() + gapY.doubleValue() * (j + 0.5);
+                    data[1][n] = startX.doubleValue() + gapX.doubleValue() * (i + 0.5);
+                    data[2][n] = Math.log1p(grid[i][j]);
+                    n++;
+                }
+            }
+        }
 
-        return jChart;
+        DefaultXYZDataset xyzDataset = new DefaultXYZDataset();
+        xyzDataset.addSeries("series", data);
+
+        //shades of the point colour on a log scale of the bin count
+        double upper = Math.log1p(maxCount);
+        int rgb = Integer.parseInt(pointcolour, 16);
+        LookupPaintScale paintScale = new LookupPaintScale(0, upper + 1, new Color(0, 0, 0, 0));
+        for(int k=0;k<DENSITY_SHADES;k++) {
+            paintScale.add(upper * k / DENSITY_SHADES, new Color((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF,
+                    64 + 191 * (k + 1) / DENSITY_SHADES));
+        }
+
+        XYBlockRenderer renderer = new XYBlockRenderer();
+        renderer.setBlockWidth(gapY.doubleValue());
+        renderer.setBlockHeight(gapX.doubleValue());
+        renderer.setPaintScale(paintScale);
+
+        //same axes and orientation as the point scatterplot
+        NumberAxis domainAxis = new NumberAxis(displayNameX);
+        domainAxis.setAutoRangeIncludesZero(false);
+        NumberAxis rangeAxis = new NumberAxis(displayNameY);
+        rangeAxis.setAutoRangeIncludesZero(false);
+        XYPlot plot = new XYPlot(xyzDataset, domainAxis, rangeAxis, renderer);
+        plot.setOrientation(PlotOrientation.HORIZONTAL);
+
+        return new JFreeChart(title, JFreeChart.DEFAULT_TITLE_FONT, plot, false);
+    }
+
+    private Number getBinWidth(double min, double max, String dataType) {
+        if(isDecimal(dataType)) {
+            //widen slightly so that the maximum value falls inside the last bin
+            return max > min ? (max - min) / densityBins * 1.000001 : 1.0;
+        } else {
+            return Math.max(1L, (long) Math.ceil((max - min) / densityBins));
+        }
+    }
+
+    private boolean isDecimal(String dataType) {
+        return "double".equals(dataType);
+    }
+
+    private double toDouble(Object value) {
+        if(value instanceof Number) {
+            return ((Number) value).doubleValue();
+        } else {
+            return Double.parseDouble(String.valueOf(value));
+        }
+    }
+
+    private SpatialSearchRequestParams copyParams(SpatialSearchRequestParams requestParams, String[] fqs) {
+        SpatialSearchRequestParams copy = new SpatialSearchRequestParams();
+        BeanUtils.copyProperties(requestParams, copy);
+        copy.setFq(fqs.clone());
+        return copy;
     }
 }
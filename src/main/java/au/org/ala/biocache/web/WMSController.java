@@ -34,6 +34,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.WebAsyncTask;
 
 import javax.imageio.ImageIO;
 import javax.inject.Inject;
@@ -48,6 +49,7 @@ import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * This controller provides mapping services which include WMS services. Includes support for:
@@ -111,6 +113,9 @@ public class WMSController {
     protected QidCacheDAO qidCacheDAO;
     @Inject
     protected WMSCache wmsCache;
+    /** Executors for tiles and exports that are written asynchronously */
+    @Inject
+    protected AsyncRequestExecutors asyncRequestExecutors;
     /**
      * Load a smaller 256x256 png than java.image produces
      */
@@ -168,6 +173,16 @@ public class WMSController {
     private LRUMap countsCache = new LRUMap(10000);
     private Object countLock = new Object();
 
+    /**
+     * Number of GetCapabilities layer hierarchies to cache.
+     */
+    @Value("${wms.capabilities.cache.size:20}")
+    private int capabilitiesCacheSize = 20;
+
+    //Stores query + index version, and, GetCapabilities layer hierarchy
+    private LRUMap capabilitiesCache = null;
+    private Object capabilitiesLock = new Object();
+
 
     static {
         byte[] b = null;
@@ -183,7 +198,8 @@ public class WMSController {
     }
 
     /**
-     * Store query params list
+     * Store query params list. With bbox=true the bounding box of the query is stored with the qid, and the
+     * stored query only includes records with longitude in [-180, 180] and latitude in [-90, 90].
      */
     @RequestMapping(value = {"/webportal/params", "/mapping/params"}, method = RequestMethod.POST)
     public void storeParams(SpatialSearchRequestParams requestParams,
@@ -212,6 +228,9 @@ public class WMSController {
         //get bbox (also cleans up Q)
         double[] bb = null;
         if (bbox != null && bbox.equals("true")) {
+            //Filter for -180 +180 longitude and -90 +90 latitude to match WMS request bounds, stored with the qid.
+            String[] fq = (String[]) ArrayUtils.addAll(qidCacheDAO.getFq(requestParams), new String[]{"longitude:[-180 TO 180]", "latitude:[-90 TO 90]"});
+            requestParams.setFq(fq);
             bb = getBBox(requestParams);
         } else {
             //get a formatted Q by running a query
@@ -546,78 +565,36 @@ public class WMSController {
     }
 
     /**
-     * Get occurrences by query as gzipped csv.
+     * Get occurrences by query as gzipped csv. The records are paged from SOLR and written as they arrive,
+     * asynchronously on the download executor.
      *
      * @param requestParams
      * @param response
      * @throws Exception
      */
     @RequestMapping(value = {"/webportal/occurrences.gz", "/mapping/occurrences.gz"}, method = RequestMethod.GET)
-    public void occurrenceGz(
-            SpatialSearchRequestParams requestParams,
-            HttpServletResponse response)
+    public @ResponseBody WebAsyncTask<Void> occurrenceGz(
+            final SpatialSearchRequestParams requestParams,
+            HttpServletRequest request,
+            final HttpServletResponse response)
             throws Exception {
 
-        response.setContentType("text/plain");
-        response.setCharacterEncoding("gzip");
+        return asyncRequestExecutors.download(request, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                response.setContentType("text/plain");
+                response.setCharacterEncoding("gzip");
 
-        ServletOutputStream outStream = response.getOutputStream();
-        java.util.zip.GZIPOutputStream gzip = new java.util.zip.GZIPOutputStream(outStream);
-
-        writeOccurrencesCsvToStream(requestParams, gzip);
-
-        gzip.flush();
-        gzip.close();
-    }
-
-    private void writeOccurrencesCsvToStream(SpatialSearchRequestParams requestParams, OutputStream stream) throws Exception {
-        SolrDocumentList sdl = searchDAO.findByFulltext(requestParams);
-
-        byte[] bComma = ",".getBytes("UTF-8");
-        byte[] bNewLine = "\n".getBytes("UTF-8");
-        byte[] bDblQuote = "\"".getBytes("UTF-8");
-
-        if (sdl != null && sdl.size() > 0) {
-            //header field identification
-            ArrayList<String> header = new ArrayList<String>();
-            if (requestParams.getFl() == null || requestParams.getFl().isEmpty()) {
-                TreeSet<String> unique = new TreeSet<String>();
-                for (int i = 0; i < sdl.size(); i++) {
-                    unique.addAll(sdl.get(i).getFieldNames());
-                }
-                header = new ArrayList<String>(unique);
-            } else {
-                String[] fields = requestParams.getFl().split(",");
-                for (int i = 0; i < fields.length; i++) {
-                    if (fields[i].length() > 0) {
-                        header.add(fields[i]);
-                    }
-                }
-            }
+                ServletOutputStream outStream = response.getOutputStream();
+                java.util.zip.GZIPOutputStream gzip = new java.util.zip.GZIPOutputStream(outStream, 65536);
 
-            //write header
-            for (int i = 0; i < header.size(); i++) {
-                if (i > 0) {
-                    stream.write(bComma);
-                }
-                stream.write(header.get(i).getBytes("UTF-8"));
-            }
+                searchDAO.writeOccurrencesCsvToStream(requestParams, gzip);
 
-            //write records
-            for (int i = 0; i < sdl.size(); i++) {
-                stream.write(bNewLine);
-                for (int j = 0; j < header.size(); j++) {
-                    if (j > 0) {
-                        stream.write(bComma);
-                    }
-                    if (sdl.get(i).containsKey(header.get(j))) {
-                        stream.write(bDblQuote);
-                        stream.write(String.valueOf(sdl.get(i).getFieldValue(header.get(j))).replace("\"", "\"\"").getBytes("UTF-8"));
-                        stream.write(bDblQuote);
-                    }
-                }
+                gzip.flush();
+                gzip.close();
+                return null;
             }
-        }
+        });
     }
 
     private void writeBytes(HttpServletResponse response, byte[] bytes) throws IOException {
@@ -836,30 +813,7 @@ public class WMSController {
      * @throws Exception
      */
     double[] getBBox(SpatialSearchRequestParams requestParams) throws Exception {
-        double[] bbox = new double[4];
-        String[] sort = {"longitude", "latitude", "longitude", "latitude"};
-        String[] dir = {"asc", "asc", "desc", "desc"};
-
-        //Filter for -180 +180 longitude and -90 +90 latitude to match WMS request bounds.
-        String[] fq = (String[]) ArrayUtils.addAll(qidCacheDAO.getFq(requestParams), new String[]{"longitude:[-180 TO 180]", "latitude:[-90 TO 90]"});
-        requestParams.setFq(fq);
-        requestParams.setPageSize(10);
-
-        for (int i = 0; i < sort.length; i++) {
-            requestParams.setSort(sort[i]);
-            requestParams.setDir(dir[i]);
-            requestParams.setFl(sort[i]);
-
-            SolrDocumentList sdl = searchDAO.findByFulltext(requestParams);
-            if (sdl != null && sdl.size() > 0) {
-                if (sdl.get(0) != null) {
-                    bbox[i] = (Double) sdl.get(0).getFieldValue(sort[i]);
-                } else {
-                    logger.error("searchDAO.findByFulltext returning SolrDocumentList with null records");
-                }
-            }
-        }
-        return bbox;
+        return searchDAO.getBBox(requestParams);
     }
 
     private String convertBBox4326To900913(String bbox) {
@@ -1034,25 +988,49 @@ public class WMSController {
         double minLat = pointType.roundDownToPointType(roundedLatitude - (pointType.getValue() * 2 * (size + 3)));
         double maxLat = pointType.roundUpToPointType(roundedLatitude + (pointType.getValue() * 2 * (size + 3)));
 
-        //do the SOLR query
         SpatialSearchRequestParams requestParams = new SpatialSearchRequestParams();
         String q = convertLayersParamToQ(queryLayers);
         requestParams.setQ(convertLayersParamToQ(queryLayers));  //need to derive this from the layer name
         logger.debug("WMS GetFeatureInfo for " + queryLayers + ", longitude:[" + minLng + " TO " + maxLng + "],  latitude:[" + minLat + " TO " + maxLat + "]");
 
         String[] fqs = new String[]{"longitude:[" + minLng + " TO " + maxLng + "]", "latitude:[" + minLat + " TO " + maxLat + "]"};
-        requestParams.setFq(fqs);
+
+        //find the points under the click in the cached tile of the layer, when there is one
+        PointType[] tilePointType = new PointType[1];
+        WMSTile tile = getCachedLayerTile(requestParams, vars.colourMode, pointType, tilePointType);
+        WMSPointIndex pointIndex = tile == null ? null : tile.getPointIndex();
+        WMSPointIndex.Result found = null;
+        if (pointIndex != null) {
+            found = pointIndex.find(minLng, minLat, maxLng, maxLat, longitude, latitude);
+            if (found != null) {
+                //only query the points found, the nearest point when the number of records is known
+                double half = tilePointType[0].getValue() > 0 ? tilePointType[0].getValue() / 2 : 0.00005;
+                fqs = new String[]{
+                        "longitude:[" + (found.getMinLongitude() - half) + " TO " + (found.getMaxLongitude() + half) + "]",
+                        "latitude:[" + (found.getMinLatitude() - half) + " TO " + (found.getMaxLatitude() + half) + "]"};
+                if (found.getCount() >= 0) {
+                    requestParams.setFq(new String[]{
+                            "longitude:[" + (found.getLongitude() - half) + " TO " + (found.getLongitude() + half) + "]",
+                            "latitude:[" + (found.getLatitude() - half) + " TO " + (found.getLatitude() + half) + "]"});
+                } else {
+                    requestParams.setFq(fqs);
+                }
+            }
+        } else {
+            requestParams.setFq(fqs);
+        }
         //requestParams.setFq(new String[]{"point-"+pointType.getValue()+":"+roundedLatitude+","+roundedLongitude});
         requestParams.setFacet(false);
+        requestParams.setPageSize(1);
 
-        //TODO: paging
-        SolrDocumentList sdl = searchDAO.findByFulltext(requestParams);
-        //send back the results.
-        String body = "";
-        if (sdl != null && sdl.size() > 0) {
-            SolrDocument doc = sdl.get(0);
-            model.addAttribute("record", doc.getFieldValueMap());
-            model.addAttribute("totalRecords", sdl.getNumFound());
+        //send back the results. No SOLR query when the cached tile has no points under the click
+        if (pointIndex == null || found != null) {
+            SolrDocumentList sdl = searchDAO.findByFulltext(requestParams);
+            if (sdl != null && sdl.size() > 0) {
+                SolrDocument doc = sdl.get(0);
+                model.addAttribute("record", doc.getFieldValueMap());
+                model.addAttribute("totalRecords", found != null && found.getCount() >= 0 ? found.getCount() : sdl.getNumFound());
+            }
         }
 
         model.addAttribute("uriUrl", "http://biocache.ala.org.au/occurrences/search?q=" +
@@ -1362,11 +1340,7 @@ public class WMSController {
             query = searchUtils.convertRankAndName(query);
             logger.debug("GetCapabilities query in use: " + query);
 
-            if (useSpeciesGroups) {
-                taxonDAO.extractBySpeciesGroups(baseWsUrl + "/ogc/getMetadata", query, filterQueries, writer);
-            } else {
-                taxonDAO.extractHierarchy(baseWsUrl + "/ogc/getMetadata", query, filterQueries, writer);
-            }
+            writer.write(getCapabilitiesLayers(query, filterQueries, useSpeciesGroups));
 
             writer.write("</Layer></Capability></WMT_MS_Capabilities>\n");
 
@@ -1375,6 +1349,38 @@ public class WMSController {
         }
     }
 
+    /**
+     * Returns the taxonomic layers of a GetCapabilities document. The layers are cached for each
+     * query and SOLR index version.
+     */
+    private String getCapabilitiesLayers(String query, String[] filterQueries, boolean useSpeciesGroups) throws Exception {
+        String key = useSpeciesGroups + "|" + query + "|" + StringUtils.join(filterQueries, "|") + "|" + searchDAO.getIndexVersion(false);
+
+        String layers;
+        synchronized (capabilitiesLock) {
+            if (capabilitiesCache == null) {
+                capabilitiesCache = new LRUMap(capabilitiesCacheSize);
+            }
+            layers = (String) capabilitiesCache.get(key);
+        }
+
+        if (layers == null) {
+            StringWriter sw = new StringWriter();
+            if (useSpeciesGroups) {
+                taxonDAO.extractBySpeciesGroups(baseWsUrl + "/ogc/getMetadata", query, filterQueries, sw);
+            } else {
+                taxonDAO.extractHierarchy(baseWsUrl + "/ogc/getMetadata", query, filterQueries, sw);
+            }
+            layers = sw.toString();
+
+            synchronized (capabilitiesLock) {
+                capabilitiesCache.put(key, layers);
+            }
+        }
+
+        return layers;
+    }
+
     public String generateStylesForPoints() {
         //need a better listings of colours
         String[] sizes = new String[]{"5", "10", "2"};
@@ -1405,6 +1411,41 @@ public class WMSController {
         return sb.toString();
     }
 
+    /**
+     * WMS service for webportal. The tile is drawn asynchronously on the WMS executor, see
+     * {@link #generateWmsTile}.
+     */
+    @RequestMapping(value = {"/webportal/wms/reflect", "/ogc/wms/reflect", "/mapping/wms/reflect"}, method = RequestMethod.GET)
+    public @ResponseBody WebAsyncTask<Void> generateWmsTileAsync(
+            final SpatialSearchRequestParams requestParams,
+            @RequestParam(value = "CQL_FILTER", required = false, defaultValue = "") final String cql_filter,
+            @RequestParam(value = "ENV", required = false, defaultValue = "") final String env,
+            @RequestParam(value = "SRS", required = false, defaultValue = "EPSG:900913") final String srs, //default to google mercator
+            @RequestParam(value = "STYLES", required = false, defaultValue = "") final String styles,
+            @RequestParam(value = "BBOX", required = true, defaultValue = "") final String bboxString,
+            @RequestParam(value = "WIDTH", required = true, defaultValue = "256") final Integer width,
+            @RequestParam(value = "HEIGHT", required = true, defaultValue = "256") final Integer height,
+            @RequestParam(value = "CACHE", required = true, defaultValue = "default") final String cache,
+            @RequestParam(value = "REQUEST", required = true, defaultValue = "") final String requestString,
+            @RequestParam(value = "OUTLINE", required = true, defaultValue = "false") final boolean outlinePoints,
+            @RequestParam(value = "OUTLINECOLOUR", required = true, defaultValue = "0x000000") final String outlineColour,
+            @RequestParam(value = "LAYERS", required = false, defaultValue = "") final String layers,
+            @RequestParam(value = "HQ", required = false) final String[] hqs,
+            @RequestParam(value = "GRIDDETAIL", required = false, defaultValue = "16") final Integer gridDivisionCount,
+            final HttpServletRequest request,
+            final HttpServletResponse response)
+            throws Exception {
+
+        return asyncRequestExecutors.wms(request, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                generateWmsTile(requestParams, cql_filter, env, srs, styles, bboxString, width, height, cache,
+                        requestString, outlinePoints, outlineColour, layers, hqs, gridDivisionCount, request, response);
+                return null;
+            }
+        });
+    }
+
     /**
      * WMS service for webportal.
      *
@@ -1418,23 +1459,22 @@ public class WMSController {
      * @param response
      * @throws Exception
      */
-    @RequestMapping(value = {"/webportal/wms/reflect", "/ogc/wms/reflect", "/mapping/wms/reflect"}, method = RequestMethod.GET)
     public void generateWmsTile(
             SpatialSearchRequestParams requestParams,
-            @RequestParam(value = "CQL_FILTER", required = false, defaultValue = "") String cql_filter,
-            @RequestParam(value = "ENV", required = false, defaultValue = "") String env,
-            @RequestParam(value = "SRS", required = false, defaultValue = "EPSG:900913") String srs, //default to google mercator
-            @RequestParam(value = "STYLES", required = false, defaultValue = "") String styles,
-            @RequestParam(value = "BBOX", required = true, defaultValue = "") String bboxString,
-            @RequestParam(value = "WIDTH", required = true, defaultValue = "256") Integer width,
-            @RequestParam(value = "HEIGHT", required = true, defaultValue = "256") Integer height,
-            @RequestParam(value = "CACHE", required = true, defaultValue = "default") String cache,
-            @RequestParam(value = "REQUEST", required = true, defaultValue = "") String requestString,
-            @RequestParam(value = "OUTLINE", required = true, defaultValue = "false") boolean outlinePoints,
-            @RequestParam(value = "OUTLINECOLOUR", required = true, defaultValue = "0x000000") String outlineColour,
-            @RequestParam(value = "LAYERS", required = false, defaultValue = "") String layers,
-            @RequestParam(value = "HQ", required = false) String[] hqs,
-            @RequestParam(value = "GRIDDETAIL", required = false, defaultValue = "16") Integer gridDivisionCount,
+            String cql_filter,
+            String env,
+            String srs,
+            String styles,
+            String bboxString,
+            Integer width,
+            Integer height,
+            String cache,
+            String requestString,
+            boolean outlinePoints,
+            String outlineColour,
+            String layers,
+            String[] hqs,
+            Integer gridDivisionCount,
             HttpServletRequest request,
             HttpServletResponse response)
             throws Exception {
@@ -1542,6 +1582,14 @@ public class WMSController {
                 width, height, width_mult, height_mult, pointWidth,
                 originalFqs, hq, boundingBoxFqs, outlinePoints, outlineColour, response, is4326, tilebbox, gridDivisionCount);
 
+        //stop when the asynchronous request timed out, the container may have reused the response
+        if (asyncRequestExecutors.isRequestComplete()) {
+            if (imgObj != null && imgObj.g != null) {
+                imgObj.g.dispose();
+            }
+            return;
+        }
+
         if (imgObj != null && imgObj.g != null) {
             imgObj.g.dispose();
             try {
@@ -2057,26 +2105,10 @@ public class WMSController {
             origAndBBoxFqs[1] = boundingBoxFqs[1];
         }
 
-        //replace qid with values for more cache hits
-        String qparam = requestParams.getQ();
-        if (qparam.startsWith("qid:")) {
-            try {
-                Qid qid = qidCacheDAO.get(qparam.substring(4));
-                if (qid != null) {
-                    qparam = qid.getQ() + qid.getWkt() + (qid.getFqs() != null ? StringUtils.join(qid.getFqs(), ",") : "");
-                }
-            } catch (Exception e) {
-            }
-        }
-
-        String qfull = qparam + StringUtils.join(requestParams.getFq(), ",") + requestParams.getQc() +
-                requestParams.getWkt() + requestParams.getRadius() + requestParams.getLat() + requestParams.getLon();
-
-        //qfull can be long if there is WKT
-        String q = String.valueOf(qfull.hashCode());
+        String q = getWMSCacheKey(requestParams);
 
         //grid and -1 colour modes have the same data
-        String cm = (vars.colourMode.equals("-1") || vars.colourMode.equals("grid")) ? "-1" : vars.colourMode;
+        String cm = getWMSCacheColourMode(vars.colourMode);
 
         //if too many points, cache with bbox string
         boolean[] useBbox = new boolean[1];
@@ -2192,6 +2224,63 @@ public class WMSController {
         }
     }
 
+    /**
+     * WMSCache query key of the request.
+     */
+    private String getWMSCacheKey(SpatialSearchRequestParams requestParams) {
+        //replace qid with values for more cache hits
+        String qparam = requestParams.getQ();
+        if (qparam.startsWith("qid:")) {
+            try {
+                Qid qid = qidCacheDAO.get(qparam.substring(4));
+                if (qid != null) {
+                    qparam = qid.getQ() + qid.getWkt() + (qid.getFqs() != null ? StringUtils.join(qid.getFqs(), ",") : "");
+                }
+            } catch (Exception e) {
+            }
+        }
+
+        String qfull = qparam + StringUtils.join(requestParams.getFq(), ",") + requestParams.getQc() +
+                requestParams.getWkt() + requestParams.getRadius() + requestParams.getLat() + requestParams.getLon();
+
+        //qfull can be long if there is WKT
+        return String.valueOf(qfull.hashCode());
+    }
+
+    /**
+     * WMSCache colour mode key, grid and -1 colour modes have the same data.
+     */
+    private String getWMSCacheColourMode(String colourMode) {
+        return (colourMode.equals("-1") || colourMode.equals("grid")) ? "-1" : colourMode;
+    }
+
+    /**
+     * Find a cached tile with all the points of a layer, at the point type or a more precise point type.
+     * A tile with counts is preferred.
+     *
+     * @return the tile, or null when there is no cached tile
+     */
+    private WMSTile getCachedLayerTile(SpatialSearchRequestParams requestParams, String colourMode, PointType pointType, PointType[] tilePointType) {
+        if (!wmsCache.isEnabled()) {
+            return null;
+        }
+        String q = getWMSCacheKey(requestParams);
+        String cm = getWMSCacheColourMode(colourMode);
+        String[] colourModes = cm.equals("-1") ? new String[]{"-1"} : new String[]{"-1", cm};
+        for (String mode : colourModes) {
+            for (PointType type : PointType.values()) {
+                if (type.getValue() <= pointType.getValue()) {
+                    WMSTile tile = wmsCache.getTest(q, mode, type);
+                    if (tile != null && tile.getCached() && tile.getPoints() != null) {
+                        tilePointType[0] = type;
+                        return tile;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
     private Integer getCachedCount(boolean docCount, SpatialSearchRequestParams requestParams, String q, PointType pointType, boolean[] useBbox) throws Exception {
 
         Integer count = null;
@@ -2253,6 +2342,14 @@ public class WMSController {
                 }
                 List<String> fqsDone = new ArrayList<String>(colours != null ? colours.size() : 0);
 
+                //get the points of all numeric ranges with one request
+                Map<String, FacetField> rangePoints = null;
+                if (numericalFacetCategories && docCount <= wmsFacetPivotCutoff) {
+                    String[] s = vars.colourMode.split(",");
+                    requestParams.setFlimit(-1);
+                    rangePoints = searchDAO.getRangeFacetPoints(requestParams, s[0], Arrays.copyOfRange(s, 1, s.length), pointType.getLabel());
+                }
+
                 //draw grouped points before drawing other points.
                 boolean otherPointsAdded = false;
                 pointsArrays.add(null);
@@ -2279,7 +2376,11 @@ public class WMSController {
                     long ms = System.currentTimeMillis();
                     requestParams.setFlimit(-1);
 
-                    makePointsFromFacet(searchDAO.getFacetPointsShort(requestParams, pointType.getLabel()), pointsArrays, countsArrays);
+                    FacetField facetPoints = rangePoints != null ? rangePoints.get(li.getFq()) : null;
+                    if (facetPoints == null) {
+                        facetPoints = searchDAO.getFacetPointsShort(requestParams, pointType.getLabel());
+                    }
+                    makePointsFromFacet(facetPoints, pointsArrays, countsArrays);
                     pColour.add(li.getColour() | (vars.alpha << 24));
                     colrmaxtime = (System.currentTimeMillis() - ms);
 
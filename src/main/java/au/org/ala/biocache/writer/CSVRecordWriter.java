@@ -40,12 +40,16 @@ public class CSVRecordWriter implements RecordWriter{
 
     public CSVRecordWriter(OutputStream out, String[] header){
         csvWriter = new CSVWriter(new OutputStreamWriter(out, Charset.forName("UTF-8")), ',', '"');
-        csvWriter.writeNext(header);
+        if (header != null) {
+            csvWriter.writeNext(header);
+        }
     }
 
     public CSVRecordWriter(OutputStream out, String[] header, char sep, char esc){
         csvWriter = new CSVWriter(new OutputStreamWriter(out, Charset.forName("UTF-8")), sep, '"', esc);
-        csvWriter.writeNext(header);
+        if (header != null) {
+            csvWriter.writeNext(header);
+        }
     }
 
     /**
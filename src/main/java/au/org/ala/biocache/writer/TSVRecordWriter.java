@@ -36,7 +36,9 @@ public class TSVRecordWriter implements RecordWriter{
 
     public TSVRecordWriter(OutputStream out, String[] header){
         this.outputStream = out;
-        write(header);
+        if (header != null) {
+            write(header);
+        }
     }
 
     /**
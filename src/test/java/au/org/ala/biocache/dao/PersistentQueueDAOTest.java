@@ -14,6 +14,9 @@ import org.junit.rules.TemporaryFolder;
 import org.junit.rules.Timeout;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -88,4 +91,49 @@ public class PersistentQueueDAOTest {
         queueDAO.refreshFromPersistent();
         assertEquals(1,queueDAO.getTotalDownloads());
     }
+
+    @Test
+    public void testIndexedSelection(){
+        DownloadDetailsDTO large = new DownloadDetailsDTO(getParams("large"), "127.0.0.1", DownloadType.RECORDS_INDEX);
+        large.setTotalRecords(2000000);
+        DownloadDetailsDTO small = new DownloadDetailsDTO(getParams("small"), "127.0.0.1", DownloadType.RECORDS_INDEX);
+        small.setTotalRecords(100);
+        DownloadDetailsDTO db = new DownloadDetailsDTO(getParams("db"), "127.0.0.1", DownloadType.RECORDS_DB);
+        queueDAO.addDownloadToQueue(large);
+        queueDAO.addDownloadToQueue(small);
+        queueDAO.addDownloadToQueue(db);
+
+        assertNotNull(queueDAO.isInQueue(new DownloadDetailsDTO(getParams("small"), "127.0.0.1", DownloadType.RECORDS_INDEX)));
+        assertSame(small, queueDAO.getNextDownload(50000, DownloadType.RECORDS_INDEX));
+        assertNull(queueDAO.getNextDownload(50000, DownloadType.RECORDS_INDEX));
+        assertSame(large, queueDAO.getNextDownload(null, DownloadType.RECORDS_INDEX));
+        assertSame(db, queueDAO.getNextDownload());
+
+        //started downloads are available again after a refresh, in the order they were added
+        queueDAO.removeDownloadFromQueue(small);
+        queueDAO.refreshFromPersistent();
+        assertEquals(2, queueDAO.getTotalDownloads());
+        assertEquals("large", queueDAO.getNextDownload().getRequestParams().getQ());
+    }
+
+    @Test
+    public void testFairOrder(){
+        DownloadDetailsDTO first = new DownloadDetailsDTO(getParams("first"), "127.0.0.1", DownloadType.RECORDS_INDEX);
+        first.setTotalRecords(10000);
+        DownloadDetailsDTO second = new DownloadDetailsDTO(getParams("second"), "127.0.0.1", DownloadType.RECORDS_INDEX);
+        second.setTotalRecords(10000);
+        DownloadRequestParams other = getParams("other");
+        other.setEmail("someone.else@example.org");
+        DownloadDetailsDTO otherUser = new DownloadDetailsDTO(other, "127.0.0.1", DownloadType.RECORDS_INDEX);
+        otherUser.setTotalRecords(10000);
+        queueDAO.addDownloadToQueue(first);
+        queueDAO.addDownloadToQueue(second);
+        queueDAO.addDownloadToQueue(otherUser);
+
+        //the other user does not wait behind both downloads of the first user
+        assertSame(first, queueDAO.getNextDownload());
+        assertSame(otherUser, queueDAO.getNextDownload());
+        assertSame(second, queueDAO.getNextDownload());
+        assertEquals(Long.valueOf(3), queueDAO.getQueueTimes().get("<=50000").get("count"));
+    }
 }
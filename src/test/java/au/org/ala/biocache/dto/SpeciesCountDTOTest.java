@@ -0,0 +1,42 @@
+package au.org.ala.biocache.dto;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the prefix sum range counts of species counts and images.
+ */
+public class SpeciesCountDTOTest extends TestCase {
+
+    public void testGetCount() {
+        SpeciesCountDTO counts = new SpeciesCountDTO(new long[]{2, 5, 7, 10}, new long[]{1, 2, 4, 8}, 0);
+
+        assertEquals(15, counts.getCount(0, 20));
+        assertEquals(15, counts.getCount(2, 10));
+        assertEquals(6, counts.getCount(3, 7));
+        assertEquals(6, counts.getCount(5, 9));
+        assertEquals(0, counts.getCount(11, 20));
+        assertEquals(0, counts.getCount(3, 4));
+        assertEquals(8, counts.getCount(10, 10));
+        assertEquals(0, counts.getCount(10, 2));
+    }
+
+    public void testGetImage() {
+        SpeciesImageDTO[] images = new SpeciesImageDTO[3];
+        for (int i = 0; i < images.length; i++) {
+            images[i] = new SpeciesImageDTO("dr" + i, "image" + i);
+            images[i].setCount(i + 1);
+        }
+        SpeciesImagesDTO speciesImages = new SpeciesImagesDTO(new long[]{2, 5, 7}, images);
+
+        SpeciesImageDTO image = speciesImages.get(3, 7);
+        assertEquals("dr1", image.getDataResourceUid());
+        assertEquals(2, image.getCount());
+
+        image = speciesImages.get(0, 8);
+        assertEquals("dr0", image.getDataResourceUid());
+        assertEquals(6, image.getCount());
+
+        assertNull(speciesImages.get(8, 20));
+        assertNull(speciesImages.get(3, 5));
+    }
+}
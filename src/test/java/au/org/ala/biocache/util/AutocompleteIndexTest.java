@@ -0,0 +1,131 @@
+package au.org.ala.biocache.util;
+
+import org.apache.log4j.Logger;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AutocompleteIndexTest {
+
+    private static final Logger logger = Logger.getLogger(AutocompleteIndexTest.class);
+
+    private AutocompleteIndex getIndex() {
+        return new AutocompleteIndex.Builder()
+                .addTaxon("k1", "Plantae", "1", "1000", 1000, null)
+                .addTaxon("g1", "Acacia", "10", "20", 6000, null)
+                .addTaxon("s1", "Acacia dealbata", "11", "11", 7000, null)
+                .addTaxon("s2", "Acacia  acuminata", "12", "12", 7000, null)
+                .addTaxon("syn1", "Racosperma dealbatum", null, null, 7000, "s1")
+                .addTaxon("nl1", "Acacia nolefta", null, null, 7000, null)
+                .addCommonName("s1", "Silver Wattle")
+                .addCommonName("g1", "Wattle")
+                .addCommonName("unknown", "Acacia unknown")
+                .build();
+    }
+
+    private String lsids(List<AutocompleteIndex.Match> matches) {
+        StringBuilder sb = new StringBuilder();
+        for (AutocompleteIndex.Match match : matches) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(match.getLsid());
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testPrefixOrder() {
+        AutocompleteIndex index = getIndex();
+
+        //exact match first, then by rank and name
+        List<AutocompleteIndex.Match> matches = index.search("Acacia", 10, true, null);
+        assertEquals("g1,s2,s1", lsids(matches));
+        assertEquals(AutocompleteIndex.EXACT_SCORE, matches.get(0).getScore(), 0);
+        assertEquals(AutocompleteIndex.PREFIX_SCORE, matches.get(1).getScore(), 0);
+
+        assertEquals("s2", lsids(index.search("acacia a", 2, true, null)));
+        assertEquals("g1,s2,s1", lsids(index.search("  A", 10, true, null)));
+        assertEquals("k1", lsids(index.search("plant", 10, true, null)));
+        assertEquals("", lsids(index.search("zzz", 10, true, null)));
+        assertEquals("", lsids(index.search("", 10, true, null)));
+    }
+
+    @Test
+    public void testWordsCommonNamesAndSynonyms() {
+        AutocompleteIndex index = getIndex();
+
+        List<AutocompleteIndex.Match> matches = index.search("dealb", 10, true, null);
+        assertEquals("s1", lsids(matches));
+        assertEquals(AutocompleteIndex.WORD_SCORE, matches.get(0).getScore(), 0);
+
+        matches = index.search("wattle", 10, true, null);
+        assertEquals("g1,s1", lsids(matches));
+        assertEquals("Wattle", matches.get(0).getCommonName());
+        assertEquals(AutocompleteIndex.EXACT_SCORE, matches.get(0).getScore(), 0);
+        assertEquals("Silver Wattle", matches.get(1).getCommonName());
+        assertEquals(AutocompleteIndex.WORD_SCORE, matches.get(1).getScore(), 0);
+
+        matches = index.search("racosperma", 10, true, null);
+        assertEquals("s1", lsids(matches));
+        assertEquals("syn1", matches.get(0).getSynonymLsid());
+        assertEquals(0, index.search("racosperma", 10, false, null).size());
+    }
+
+    @Test
+    public void testFilter() {
+        AutocompleteIndex index = getIndex();
+
+        List<AutocompleteIndex.Match> matches = index.search("a", 2, true, new AutocompleteIndex.TaxonFilter() {
+            @Override
+            public boolean accept(long left, long right) {
+                return left > 10;
+            }
+        });
+        assertEquals("s2,s1", lsids(matches));
+        assertEquals(12, matches.get(0).getLeft());
+    }
+
+    /**
+     * Latency of the autocomplete index compared with the Lucene name index queries. Runs when the
+     * nameindex.dir system property is the location of a name index.
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        String dir = System.getProperty("nameindex.dir");
+        Assume.assumeTrue(dir != null);
+
+        ALANameSearcherExt nameIndex = new ALANameSearcherExt(dir);
+        long start = System.currentTimeMillis();
+        AutocompleteIndex index = nameIndex.buildAutocompleteIndex();
+        logger.info("built autocomplete index of " + index.size() + " names in " + (System.currentTimeMillis() - start) + "ms");
+
+        String[] queries = {"a", "ac", "aca", "acacia", "eucalyptus g", "kang", "grey kangaroo", "macropus", "p", "wat"};
+        int max = 10;
+        int repeats = 20;
+        for (int warm = 0; warm < 2; warm++) {
+            long lucene = 0;
+            long prefix = 0;
+            long formatted = 0;
+            for (int r = 0; r < repeats; r++) {
+                for (String q : queries) {
+                    long t = System.nanoTime();
+                    nameIndex.autocomplete(q, max + 1000, true);
+                    lucene += System.nanoTime() - t;
+
+                    t = System.nanoTime();
+                    index.search(q, max, true, null);
+                    prefix += System.nanoTime() - t;
+
+                    t = System.nanoTime();
+                    nameIndex.autocomplete(index, q, max, true, null);
+                    formatted += System.nanoTime() - t;
+                }
+            }
+            int n = repeats * queries.length;
+            logger.info("mean latency per query: lucene " + lucene / n / 1000 + "us, autocomplete index "
+                    + prefix / n / 1000 + "us, autocomplete index with formatted results " + formatted / n / 1000 + "us");
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package au.org.ala.biocache.util;
+
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DownloadCheckpointTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private DownloadDetailsDTO getDownload(String params) throws Exception {
+        DownloadDetailsDTO dd = new DownloadDetailsDTO(params, "127.0.0.1", DownloadDetailsDTO.DownloadType.RECORDS_INDEX);
+        dd.setFileLocation(new File(tempDir.getRoot(), "data.zip").getAbsolutePath());
+        return dd;
+    }
+
+    @Test
+    public void testContinueFromCompletedParts() throws Exception {
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.open(getDownload("q=test"));
+        OutputStream part = checkpoint.openPart("month:01");
+        part.write("a\n".getBytes());
+        part.close();
+        checkpoint.complete("month:01", 1, Collections.singletonMap("dr1", 1));
+        // interrupted while writing the second part
+        checkpoint.openPart("month:02").close();
+
+        checkpoint = DownloadCheckpoint.open(getDownload("q=test"));
+        assertEquals(1, checkpoint.getPart("month:01").records);
+        assertEquals(Integer.valueOf(1), checkpoint.getPart("month:01").uids.get("dr1"));
+        assertNull(checkpoint.getPart("month:02"));
+        assertFalse(checkpoint.isComplete(Arrays.asList("month:01", "month:02")));
+
+        part = checkpoint.openPart("month:02");
+        part.write("b\n".getBytes());
+        part.close();
+        checkpoint.complete("month:02", 1, Collections.singletonMap("dr2", 1));
+        assertTrue(checkpoint.isComplete(Arrays.asList("month:01", "month:02")));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        checkpoint.writeParts(Arrays.asList("month:02", "month:01"), out);
+        assertEquals("b\na\n", out.toString());
+
+        // a different download does not continue from the parts
+        checkpoint = DownloadCheckpoint.open(getDownload("q=other"));
+        assertNull(checkpoint.getPart("month:01"));
+
+        DownloadCheckpoint.delete(getDownload("q=other"));
+        assertFalse(DownloadCheckpoint.getDirectory(getDownload("q=other")).exists());
+    }
+
+    @Test
+    public void testWritePartsOfStoppedDownload() throws Exception {
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.open(getDownload("q=test"));
+        OutputStream part = checkpoint.openPart("month:01");
+        part.write("a\n".getBytes());
+        part.close();
+        checkpoint.complete("month:01", 1, Collections.singletonMap("dr1", 1));
+        // timed out while writing the second part, before the third part was started
+        part = checkpoint.openPart("month:02");
+        part.write("b\n".getBytes());
+        part.close();
+
+        List<String> keys = Arrays.asList("month:01", "month:02", "month:03");
+        assertFalse(checkpoint.isComplete(keys));
+
+        // the records written before the download stopped are kept
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        checkpoint.writeParts(keys, out);
+        assertEquals("a\nb\n", out.toString());
+    }
+}
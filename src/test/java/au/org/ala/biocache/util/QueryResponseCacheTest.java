@@ -0,0 +1,69 @@
+package au.org.ala.biocache.util;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class QueryResponseCacheTest {
+
+    private QueryResponse response(String value) {
+        NamedList<Object> list = new NamedList<Object>();
+        list.add("value", value);
+        QueryResponse qr = new QueryResponse();
+        qr.setResponse(list);
+        return qr;
+    }
+
+    @Test
+    public void testKey() {
+        SolrQuery a = new SolrQuery("*:*");
+        a.addFilterQuery("b:1", "a:1");
+        a.setRows(0);
+        SolrQuery b = new SolrQuery("*:*");
+        b.setRows(0);
+        b.addFilterQuery("a:1", "b:1");
+        assertEquals(QueryResponseCache.getKey(a), QueryResponseCache.getKey(b));
+
+        b.setRows(10);
+        assertFalse(QueryResponseCache.getKey(a).equals(QueryResponseCache.getKey(b)));
+    }
+
+    @Test
+    public void testIndexVersionAndStats() {
+        QueryResponseCache cache = new QueryResponseCache(100000);
+        assertNull(cache.get("search", "k", 1));
+        cache.put("k", response("v"), 1);
+        assertNotNull(cache.get("search", "k", 1));
+
+        //a response from an older index is not cached
+        cache.put("old", response("v"), 0);
+        assertNull(cache.get("search", "old", 1));
+
+        //a new index version empties the cache
+        assertNull(cache.get("search", "k", 2));
+
+        Map<String, Object> stats = cache.getStats();
+        Map<String, Object> search = (Map<String, Object>) ((Map<String, Object>) stats.get("endpoints")).get("search");
+        assertEquals(1L, search.get("hits"));
+        assertEquals(3L, search.get("misses"));
+        assertEquals(0, stats.get("entries"));
+    }
+
+    @Test
+    public void testEviction() {
+        QueryResponseCache cache = new QueryResponseCache(10000);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) sb.append('x');
+        for (int i = 0; i < 100; i++) {
+            cache.put("k" + i, response(sb.toString()), 1);
+        }
+        assertTrue((Long) cache.getStats().get("bytes") <= 10000);
+        assertNotNull(cache.get("search", "k99", 1));
+        assertNull(cache.get("search", "k0", 1));
+    }
+}
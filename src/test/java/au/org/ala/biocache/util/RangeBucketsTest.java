@@ -0,0 +1,53 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class RangeBucketsTest {
+
+    @Test
+    public void testNumericRanges() {
+        RangeBuckets ranges = new RangeBuckets("year", new String[]{"*", "1899", "1900", "1950", "1950", "*"});
+        assertEquals(3, ranges.size());
+        assertEquals("year:[1900 TO 1950]", ranges.getFq(1));
+        assertEquals("-year:[* TO *]", ranges.getMissingFq());
+
+        assertEquals(Arrays.asList(0), ranges.getRanges(1800));
+        assertEquals(Arrays.asList(1), ranges.getRanges(1900.0));
+        //bounds are inclusive, the same as filter queries
+        assertEquals(Arrays.asList(1, 2), ranges.getRanges(1950));
+        assertEquals(Arrays.asList(2), ranges.getRanges("2000"));
+        assertEquals(Collections.<Integer>emptyList(), ranges.getRanges(null));
+    }
+
+    @Test
+    public void testFloatBounds() {
+        RangeBuckets ranges = new RangeBuckets("coordinate_uncertainty", new String[]{"0", "0.1", "0.1", "0.2"});
+        //0.1f is greater than 0.1 as a double, SOLR parses the bounds as floats for a float field
+        assertEquals(Arrays.asList(0, 1), ranges.getRanges(0.1f));
+        assertEquals(Arrays.asList(1), ranges.getRanges(0.2f));
+        assertEquals(Arrays.asList(0, 1), ranges.getRanges(0.1));
+    }
+
+    @Test
+    public void testDateRanges() {
+        RangeBuckets ranges = new RangeBuckets("occurrence_year", new String[]{"1970-01-01T00:00:00Z", "1979-12-31T23:59:59Z"});
+        assertEquals(Arrays.asList(0), ranges.getRanges(new Date(1000)));
+        assertEquals(Collections.<Integer>emptyList(), ranges.getRanges(new Date(-1000)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBound() {
+        new RangeBuckets("year", new String[]{"a", "b"});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOddCutpoints() {
+        new RangeBuckets("year", new String[]{"1"});
+    }
+}
@@ -0,0 +1,69 @@
+package au.org.ala.biocache.util;
+
+import au.org.ala.biocache.dto.OccurrenceIndex;
+import au.org.ala.biocache.dto.SensitiveOccurrenceIndex;
+import org.apache.solr.client.solrj.beans.DocumentObjectBinder;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SolrBeanBinderTest {
+
+    private SolrDocumentList getDocs() {
+        SolrDocument doc = new SolrDocument();
+        doc.setField("id", "uuid1");
+        doc.setField("taxon_name", "Acacia dealbata");
+        doc.setField("latitude", -35.0);
+        doc.setField("rank_id", 7000);
+        doc.setField("occurrence_date", new Date(0));
+        doc.addField("species_group", "Plants");
+        doc.addField("species_group", "Dicots");
+        doc.setField("assertions", "noCollectionDate");
+        doc.setField("photographer_s", "someone");
+        doc.setField("extra_s", "value");
+        doc.setField("count_i", 3);
+        doc.setField("sensitive_latitude", -35.5);
+        doc.setField("not_a_property", "x");
+
+        SolrDocumentList docs = new SolrDocumentList();
+        docs.add(doc);
+        docs.add(new SolrDocument());
+        return docs;
+    }
+
+    @Test
+    public void testSameAsDocumentObjectBinder() {
+        List<OccurrenceIndex> expected = new DocumentObjectBinder().getBeans(OccurrenceIndex.class, getDocs());
+        List<OccurrenceIndex> actual = SolrBeanBinder.getBinder(OccurrenceIndex.class).getBeans(getDocs());
+
+        assertEquals(2, actual.size());
+        OccurrenceIndex e = expected.get(0);
+        OccurrenceIndex a = actual.get(0);
+        assertEquals(e.getUuid(), a.getUuid());
+        assertEquals(e.getScientificName(), a.getScientificName());
+        assertEquals(e.getDecimalLatitude(), a.getDecimalLatitude());
+        assertEquals(e.getTaxonRankID(), a.getTaxonRankID());
+        assertEquals(e.getEventDate(), a.getEventDate());
+        assertTrue(Arrays.equals(e.getSpeciesGroups(), a.getSpeciesGroups()));
+        assertTrue(Arrays.equals(e.getAssertions(), a.getAssertions()));
+        assertEquals(e.getPhotographer(), a.getPhotographer());
+        assertEquals(e.getMiscStringProperties(), a.getMiscStringProperties());
+        assertEquals(e.getMiscIntProperties(), a.getMiscIntProperties());
+        assertNull(a.getMiscDoubleProperties());
+        assertNull(actual.get(1).getUuid());
+    }
+
+    @Test
+    public void testSubclass() {
+        SensitiveOccurrenceIndex a = SolrBeanBinder.getBinder(SensitiveOccurrenceIndex.class).getBeans(getDocs()).get(0);
+        assertEquals("uuid1", a.getUuid());
+        assertEquals(-35.5, a.getSensitiveDecimalLatitude(), 0);
+        assertEquals(0, SolrBeanBinder.getBinder(OccurrenceIndex.class).getBeans(null).size());
+    }
+}
@@ -0,0 +1,21 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SpatialUtilsTest {
+
+    @Test
+    public void testWKTQuery() {
+        String wkt = "POLYGON((1 1,89 1,89 44,1 44,1 1))";
+        assertEquals("geohash:\"Intersects(" + wkt + ")\"", SpatialUtils.getWKTQuery("geohash", wkt, false));
+        assertEquals("-geohash:\"Intersects(" + wkt + ")\"", SpatialUtils.getWKTQuery("geohash", wkt, true));
+
+        //polygons of a collection are unioned
+        String collection = "GEOMETRYCOLLECTION(POLYGON((1 1,2 1,2 2,1 2,1 1)),POLYGON((2 1,3 1,3 2,2 2,2 1)))";
+        String query = SpatialUtils.getWKTQuery("geohash", collection, false);
+        assertTrue(query.startsWith("geohash:\"Intersects(POLYGON"));
+        assertFalse(query.contains(" OR "));
+    }
+}
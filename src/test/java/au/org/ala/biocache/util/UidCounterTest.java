@@ -0,0 +1,54 @@
+package au.org.ala.biocache.util;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for the per thread uid counts used by downloads.
+ */
+public class UidCounterTest extends TestCase {
+
+    public void testIncrement() {
+        UidCounter counter = new UidCounter();
+        counter.increment("dr1");
+        counter.increment("dr1");
+        counter.increment("in1");
+        counter.increment(null);
+
+        assertEquals(2, counter.getCount("dr1"));
+        assertEquals(1, counter.getCount("in1"));
+        assertEquals(0, counter.getCount("co1"));
+    }
+
+    public void testGrowth() {
+        UidCounter counter = new UidCounter();
+        for (int i = 0; i < 100; i++) {
+            counter.increment("dr" + i);
+            counter.increment("dr" + i);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(2, counter.getCount("dr" + i));
+        }
+    }
+
+    public void testMergeInto() {
+        ConcurrentMap<String, AtomicInteger> uidStats = new ConcurrentHashMap<String, AtomicInteger>();
+        uidStats.put("dr1", new AtomicInteger(5));
+
+        UidCounter counter = new UidCounter();
+        counter.increment("dr1");
+        counter.increment("dr2");
+        counter.mergeInto(uidStats);
+
+        assertEquals(6, uidStats.get("dr1").get());
+        assertEquals(1, uidStats.get("dr2").get());
+
+        //counts are reset after a merge
+        counter.mergeInto(uidStats);
+        assertEquals(6, uidStats.get("dr1").get());
+        assertEquals(0, counter.getCount("dr1"));
+    }
+}
@@ -0,0 +1,58 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WMSPointIndexTest {
+
+    @Test
+    public void testFindWithCounts() {
+        List<float[]> points = new ArrayList<float[]>();
+        List<int[]> counts = new ArrayList<int[]>();
+        points.add(new float[]{150.1f, -35.1f, 150.2f, -35.2f, 120f, -20f, Float.NaN, 0f, 120f, -20f});
+        counts.add(new int[]{3, 4, 5, 1, 0});
+
+        WMSPointIndex index = new WMSPointIndex(points, counts);
+        assertEquals(3, index.size());
+
+        WMSPointIndex.Result result = index.find(150, -36, 151, -35, 150.19, -35.19);
+        assertNotNull(result);
+        assertEquals(2, result.getPoints());
+        assertEquals(7, result.getCount());
+        assertEquals(150.2, result.getLongitude(), 0.0001);
+        assertEquals(-35.2, result.getLatitude(), 0.0001);
+        assertEquals(150.1, result.getMinLongitude(), 0.0001);
+        assertEquals(-35.1, result.getMaxLatitude(), 0.0001);
+
+        assertNull(index.find(130, -30, 140, -25, 135, -27));
+    }
+
+    @Test
+    public void testFindInColours() {
+        List<float[]> points = new ArrayList<float[]>();
+        for (int c = 0; c < 3; c++) {
+            float[] ps = new float[200];
+            for (int i = 0; i < 100; i++) {
+                ps[2 * i] = c * 10 + i * 0.1f;
+                ps[2 * i + 1] = i * 0.1f;
+            }
+            points.add(ps);
+        }
+        points.add(null);
+
+        WMSPointIndex index = new WMSPointIndex(points, null);
+        assertEquals(300, index.size());
+
+        WMSPointIndex.Result result = index.find(20.45, 0.45, 20.75, 0.75, 20.6, 0.6);
+        assertNotNull(result);
+        assertEquals(3, result.getPoints());
+        assertEquals(-1, result.getCount());
+        assertEquals(20.6, result.getLongitude(), 0.0001);
+
+        assertNull(new WMSPointIndex(new ArrayList<float[]>(), null).find(-180, -90, 180, 90, 0, 0));
+    }
+}